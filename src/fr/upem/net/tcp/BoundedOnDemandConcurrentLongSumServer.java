@@ -1,7 +1,6 @@
 package fr.upem.net.tcp;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
@@ -15,10 +14,15 @@ public class BoundedOnDemandConcurrentLongSumServer  {
     private static final int BUFFER_SIZE = 1024; 
     private final ServerSocketChannel serverSocketChannel;
     private final Semaphore semaphore;
+    private final SocketProfile profile;
     
     public BoundedOnDemandConcurrentLongSumServer (int port, int maxClient) throws IOException {
-        serverSocketChannel = ServerSocketChannel.open();
-        serverSocketChannel.bind(new InetSocketAddress(port));
+        this(port, maxClient, SocketProfile.fromSystemProperty());
+    }
+
+    public BoundedOnDemandConcurrentLongSumServer (int port, int maxClient, SocketProfile profile) throws IOException {
+        serverSocketChannel = profile.bind(port);
+        this.profile = profile;
         semaphore = new Semaphore(maxClient);
         logger.info(this.getClass().getName()
                 + " starts on port " + port);
@@ -27,6 +31,7 @@ public class BoundedOnDemandConcurrentLongSumServer  {
     private void launchClient(SocketChannel client ) {
 		new Thread(() -> {
 			try {
+				profile.configure(client);
 				serve(client);
 			} catch (InterruptedException e) {
 				logger.info("Server interrupted"+ e.getMessage());
@@ -85,7 +85,7 @@ public class ClientConcatenation {
 		InetSocketAddress server = new InetSocketAddress(args[0], Integer.valueOf(args[1]));
 		List<String> lines = new ArrayList<>();
 
-		try (SocketChannel sc = SocketChannel.open(server);
+		try (SocketChannel sc = SocketProfile.fromSystemProperty().connect(server);
 				Scanner scanner = new Scanner(System.in)) {
 			var client = new ClientConcatenation(sc);
 			while (scanner.hasNextLine()) {
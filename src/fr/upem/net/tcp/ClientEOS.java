@@ -30,8 +30,7 @@ public class ClientEOS {
 	 */
 
 	public static String getFixedSizeResponse(String request, SocketAddress server, int bufferSize) throws IOException {
-		SocketChannel sc = SocketChannel.open();
-		sc.connect(server);
+		SocketChannel sc = SocketProfile.fromSystemProperty().connect(server);
 		ByteBuffer snedBuffer = ByteBuffer.allocate(BUFFER_SIZE);
 		snedBuffer.put(UTF8_CHARSET.encode(request));
 		snedBuffer.flip();
@@ -66,8 +65,7 @@ public class ClientEOS {
 
 	public static String getUnboundedResponse(String request, SocketAddress server) throws IOException {
 
-		try(SocketChannel sc = SocketChannel.open()){
-			//sc.connect(server); il faut pas faire connect ??
+		try(SocketChannel sc = SocketProfile.fromSystemProperty().connect(server)){
 			sc.write(UTF8_CHARSET.encode(request));
 			sc.shutdownOutput();
 			
@@ -4,26 +4,25 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.util.*;
+import java.util.OptionalLong;
+import java.util.Random;
 import java.util.logging.Logger;
+import java.util.stream.LongStream;
 
 public class ClientLongSum {
 
-	private static final int BUFFER_SIZE = 1024;
+	private static final int BUFFER_SIZE = 64 * 1_024;
+	// direct buffers are costly to allocate, each thread reuses its own for all its requests
+	private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
 	public static final Logger logger = Logger.getLogger(ClientLongSum.class.getName());
-	
-	
-	
-	private static ArrayList<Long> randomLongList(int size) {
-		Random rng = new Random();
-		ArrayList<Long> list = new ArrayList<>(size);
-		for (int i = 0; i < size; i++) {
-			list.add(rng.nextLong());
-		}
-		return list;
+
+
+
+	private static long[] randomLongs(int size) {
+		return new Random().longs(size).toArray();
 	}
 
-	
+
 	static boolean readFully(SocketChannel sc, ByteBuffer bb) throws IOException {
         while(bb.hasRemaining()) {
             if (sc.read(bb)==-1){
@@ -33,59 +32,126 @@ public class ClientLongSum {
         }
         return true;
     }
-	
-	private static boolean checkSum(List<Long> list, long response) {
-		long sum = 0;
-		for (long l : list)
-			sum += l;
-		return sum == response;
+
+	private static boolean checkSum(long[] operands, long response) {
+		return LongStream.of(operands).sum() == response;
 	}
 
 	/**
-	 * Write all the longs in list in BigEndian on the server and read the long sent
+	 * Writes bb, in write-mode, entirely on sc and clears it
+	 *
+	 * @throws IOException
+	 */
+	private static void flush(SocketChannel sc, ByteBuffer bb) throws IOException {
+		bb.flip();
+		while (bb.hasRemaining()) {
+			sc.write(bb);
+		}
+		bb.clear();
+	}
+
+	private static OptionalLong readSum(SocketChannel sc) throws IOException {
+		ByteBuffer recieveBb = ByteBuffer.allocate(Long.BYTES);
+		if(readFully(sc, recieveBb)) {
+			recieveBb.flip();
+			return OptionalLong.of(recieveBb.getLong());
+		}
+		return OptionalLong.empty();
+	}
+
+	/**
+	 * Write all the longs of operands in BigEndian on the server and read the long sent
 	 * by the server and returns it
 	 *
-	 * returns Optional.empty if the protocol is not followed by the server but no
+	 * returns OptionalLong.empty if the protocol is not followed by the server but no
 	 * IOException is thrown
 	 *
 	 * @param sc
-	 * @param list
+	 * @param operands
 	 * @return
 	 * @throws IOException
 	 */
-	private static Optional<Long> requestSumForList(SocketChannel sc, List<Long> list) throws IOException {
+	public static OptionalLong requestSum(SocketChannel sc, long[] operands) throws IOException {
+		return requestSum(sc, operands, 0, operands.length);
+	}
 
-		ByteBuffer bb = ByteBuffer.allocate(BUFFER_SIZE);
-		bb.putInt(list.size());
-		for(var l : list) {
-			bb.putLong(l);
+	/**
+	 * Same as requestSum for the longs of operands from index from, included, to
+	 * index to, excluded. They are copied in bulk through a LongBuffer view of the
+	 * direct buffer of the calling thread and sent one buffer at a time.
+	 *
+	 * @throws IOException
+	 */
+	public static OptionalLong requestSum(SocketChannel sc, long[] operands, int from, int to) throws IOException {
+		if (from < 0 || to > operands.length || from > to) {
+			throw new IndexOutOfBoundsException("invalid range " + from + ".." + to);
 		}
-		bb.flip();
-		sc.write(bb);
-		//sc.shutdownOutput();
-		
-		ByteBuffer recieveBb = ByteBuffer.allocate(Long.BYTES);
-		
-		if(readFully(sc, recieveBb)) {
-			recieveBb.flip();
-			return Optional.of(recieveBb.getLong());
+		ByteBuffer bb = BUFFERS.get().clear();
+		bb.putInt(to - from);
+		while (from < to) {
+			var longs = bb.asLongBuffer();
+			var count = Math.min(longs.remaining(), to - from);
+			longs.put(operands, from, count);
+			bb.position(bb.position() + count * Long.BYTES);
+			from += count;
+			flush(sc, bb);
+		}
+		if (bb.position() != 0) {
+			flush(sc, bb);
+		}
+		return readSum(sc);
+	}
+
+	/**
+	 * Same as requestSum for the count first longs of operands, which are never
+	 * stored all at once
+	 *
+	 * @throws IOException
+	 * @throws IllegalArgumentException if operands has less than count longs, the
+	 *                                  request is then incomplete and the
+	 *                                  connection must be closed
+	 */
+	public static OptionalLong requestSum(SocketChannel sc, int count, LongStream operands) throws IOException {
+		if (count < 0) {
+			throw new IllegalArgumentException("negative count");
+		}
+		ByteBuffer bb = BUFFERS.get().clear();
+		var batch = new long[BUFFER_SIZE / Long.BYTES];
+		var iterator = operands.limit(count).iterator();
+		bb.putInt(count);
+		var sent = 0;
+		while (sent < count) {
+			var longs = bb.asLongBuffer();
+			var size = 0;
+			while (size < longs.remaining() && iterator.hasNext()) {
+				batch[size++] = iterator.nextLong();
+			}
+			if (size == 0) {
+				throw new IllegalArgumentException("only " + sent + " operands out of " + count);
+			}
+			longs.put(batch, 0, size);
+			bb.position(bb.position() + size * Long.BYTES);
+			sent += size;
+			flush(sc, bb);
+		}
+		if (bb.position() != 0) {
+			flush(sc, bb);
 		}
-		
-		return Optional.empty();
+		return readSum(sc);
 	}
 
 	public static void main(String[] args) throws IOException {
 		InetSocketAddress server = new InetSocketAddress(args[0], Integer.valueOf(args[1]));
-		try (SocketChannel sc = SocketChannel.open(server)) { //SA
+		try (SocketChannel sc = SocketProfile.fromSystemProperty().connect(server)) { //SA
 			for (int i = 0; i < 5; i++) {
-				ArrayList<Long> list = randomLongList(50);
+				long[] operands = randomLongs(50);
 
-				Optional<Long> l = requestSumForList(sc, list);
+				OptionalLong l = requestSum(sc, operands);
 				if (!l.isPresent()) {
 					System.err.println("Connection with server lost.");
 					return;
 				}
-				if (!checkSum(list, l.get())) {
+				if (!checkSum(operands, l.getAsLong())) {
 					System.err.println("Oups! Something wrong happens!");
 				}
 			}
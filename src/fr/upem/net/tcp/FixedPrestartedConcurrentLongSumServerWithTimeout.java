@@ -1,7 +1,6 @@
 package fr.upem.net.tcp;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.ServerSocketChannel;
@@ -22,10 +21,16 @@ public class FixedPrestartedConcurrentLongSumServerWithTimeout {
 	private final int nbThreads;
 	private final ServerSocketChannel serverSocketChannel;
 	private final List<ThreadData> threadDataList;
+	private final SocketProfile profile;
 
 	public FixedPrestartedConcurrentLongSumServerWithTimeout(int port, int maxClient) throws IOException {
-		serverSocketChannel = ServerSocketChannel.open();
-		serverSocketChannel.bind(new InetSocketAddress(port));
+		this(port, maxClient, SocketProfile.fromSystemProperty());
+	}
+
+	public FixedPrestartedConcurrentLongSumServerWithTimeout(int port, int maxClient, SocketProfile profile)
+			throws IOException {
+		serverSocketChannel = profile.bind(port);
+		this.profile = profile;
 		threadDataList = new ArrayList<ThreadData>();
 		nbThreads = maxClient;
 		logger.info(this.getClass().getName() + " starts on port " + port);
@@ -33,6 +38,7 @@ public class FixedPrestartedConcurrentLongSumServerWithTimeout {
 
 	private void launchClient(ThreadData threadData) {
 		try {
+			profile.configure(threadData.getSocketChannel());
 			serve(threadData);
 		} catch (InterruptedException e) {
 			logger.info("Server interrupted" + e.getMessage());
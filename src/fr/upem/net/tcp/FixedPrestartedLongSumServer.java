@@ -1,7 +1,6 @@
 package fr.upem.net.tcp;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.ServerSocketChannel;
@@ -16,10 +15,15 @@ public class FixedPrestartedLongSumServer {
 	private static final int BUFFER_SIZE = 1024;
 	private final int nbThreads;
 	private final ServerSocketChannel serverSocketChannel;
+	private final SocketProfile profile;
 
 	public FixedPrestartedLongSumServer(int port, int maxClient) throws IOException {
-		serverSocketChannel = ServerSocketChannel.open();
-		serverSocketChannel.bind(new InetSocketAddress(port));
+		this(port, maxClient, SocketProfile.fromSystemProperty());
+	}
+
+	public FixedPrestartedLongSumServer(int port, int maxClient, SocketProfile profile) throws IOException {
+		serverSocketChannel = profile.bind(port);
+		this.profile = profile;
 
 		nbThreads = maxClient;
 		logger.info(this.getClass().getName() + " starts on port " + port);
@@ -27,6 +31,7 @@ public class FixedPrestartedLongSumServer {
 
 	private void launchClient(SocketChannel client) {
 		try {
+			profile.configure(client);
 			serve(client);
 		} catch (InterruptedException e) {
 			logger.info("Server interrupted" + e.getMessage());
@@ -1,7 +1,6 @@
 package fr.upem.net.tcp;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
@@ -13,10 +12,15 @@ public class IterativeLongSumServer {
     private static final Logger logger = Logger.getLogger(IterativeLongSumServer.class.getName());
     private static final int BUFFER_SIZE = 1024; 
     private final ServerSocketChannel serverSocketChannel;
+    private final SocketProfile profile;
 
     public IterativeLongSumServer(int port) throws IOException {
-        serverSocketChannel = ServerSocketChannel.open();
-        serverSocketChannel.bind(new InetSocketAddress(port));
+        this(port, SocketProfile.fromSystemProperty());
+    }
+
+    public IterativeLongSumServer(int port, SocketProfile profile) throws IOException {
+        serverSocketChannel = profile.bind(port);
+        this.profile = profile;
         logger.info(this.getClass().getName()
                 + " starts on port " + port);
     }
@@ -32,6 +36,7 @@ public class IterativeLongSumServer {
         while(!Thread.interrupted()) {
             SocketChannel client = serverSocketChannel.accept();
             try {
+                profile.configure(client);
                 logger.info("Connection accepted from " + client.getRemoteAddress());
                 serve(client);
             } catch (IOException ioe) {
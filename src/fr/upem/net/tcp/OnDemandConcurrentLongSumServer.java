@@ -1,7 +1,6 @@
 package fr.upem.net.tcp;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
@@ -13,10 +12,15 @@ public class OnDemandConcurrentLongSumServer {
 	private static final Logger logger = Logger.getLogger(OnDemandConcurrentLongSumServer.class.getName());
 	private static final int BUFFER_SIZE = 1024;
 	private final ServerSocketChannel serverSocketChannel;
+	private final SocketProfile profile;
 
 	public OnDemandConcurrentLongSumServer(int port) throws IOException {
-		serverSocketChannel = ServerSocketChannel.open();
-		serverSocketChannel.bind(new InetSocketAddress(port));
+		this(port, SocketProfile.fromSystemProperty());
+	}
+
+	public OnDemandConcurrentLongSumServer(int port, SocketProfile profile) throws IOException {
+		serverSocketChannel = profile.bind(port);
+		this.profile = profile;
 		logger.info(this.getClass().getName() + " starts on port " + port);
 	}
 
@@ -34,6 +38,7 @@ public class OnDemandConcurrentLongSumServer {
 
 			new Thread(() -> {
 				try {
+					profile.configure(client);
 					serve(client);
 				} catch (InterruptedException e) {
 					logger.info("Server interrupted"+ e.getMessage());
@@ -0,0 +1,261 @@
+package fr.upem.net.tcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.LongStream;
+
+/**
+ * Client of the LongSum protocol splitting the sum of a large array into shards,
+ * summed in parallel over a pool of connections to one or several servers.
+ *
+ * Each connection runs in its own thread and takes the next shard until there
+ * are none left, so that a faster server takes more shards. A shard whose
+ * connection is lost goes back to the queue for the other connections, the
+ * lost connection is opened again at the next sum. A shard not summed within
+ * the shard timeout is handled the same way, its connection is closed so that
+ * a server that stops answering does not block the sum. The partial sums are
+ * added modulo 2^64, as the servers do, the result is the one of a single
+ * request.
+ */
+public class ParallelClientLongSum implements AutoCloseable {
+
+	/**
+	 * A connection of the pool, opened again when it has been lost
+	 */
+	static private class Connection {
+		private final InetSocketAddress server;
+		private volatile SocketChannel sc; // null when lost
+		private volatile long deadline = Long.MAX_VALUE; // System.nanoTime by which the current shard is due
+
+		private Connection(InetSocketAddress server) {
+			this.server = server;
+		}
+
+		private void silentlyClose() {
+			if (sc != null) {
+				try {
+					sc.close();
+				} catch (IOException e) {
+					// Do nothing
+				}
+				sc = null;
+			}
+		}
+
+		/**
+		 * Closes sc from another thread, the shard in progress then fails
+		 */
+		private void abort() {
+			deadline = Long.MAX_VALUE;
+			var current = sc;
+			if (current != null) {
+				try {
+					current.close();
+				} catch (IOException e) {
+					// Do nothing
+				}
+			}
+		}
+	}
+
+	private static final Logger logger = Logger.getLogger(ParallelClientLongSum.class.getName());
+	private static final int SHARDS_PER_CONNECTION = 4;
+	private static final int MAX_SHARD_SIZE = 1 << 20; // the servers allocate a buffer for a whole request
+	private static final long DEFAULT_SHARD_TIMEOUT = 30_000; // milliseconds
+
+	private final List<Connection> connections = new ArrayList<>();
+	private final SocketProfile profile;
+	private final long shardTimeout; // nanoseconds
+	private final ExecutorService executor;
+
+	public ParallelClientLongSum(List<InetSocketAddress> servers, int connectionsPerServer) {
+		this(servers, connectionsPerServer, SocketProfile.fromSystemProperty(), DEFAULT_SHARD_TIMEOUT);
+	}
+
+	/**
+	 * The connections are opened by the first sum
+	 *
+	 * @param servers              the LongSum servers sharing the work
+	 * @param connectionsPerServer the number of connections to each server
+	 * @param shardTimeout         the time given to a server to sum a shard, in
+	 *                             milliseconds
+	 */
+	public ParallelClientLongSum(List<InetSocketAddress> servers, int connectionsPerServer, SocketProfile profile,
+			long shardTimeout) {
+		if (servers.isEmpty() || connectionsPerServer <= 0) {
+			throw new IllegalArgumentException("no connection");
+		}
+		if (shardTimeout <= 0) {
+			throw new IllegalArgumentException("timeout must be positive");
+		}
+		for (int i = 0; i < connectionsPerServer; i++) {
+			for (var server : servers) {
+				connections.add(new Connection(Objects.requireNonNull(server)));
+			}
+		}
+		this.profile = Objects.requireNonNull(profile);
+		this.shardTimeout = TimeUnit.MILLISECONDS.toNanos(shardTimeout);
+		executor = Executors.newFixedThreadPool(connections.size(), task -> {
+			var thread = new Thread(task);
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Sums the shards of the queue over connection until there are none left or
+	 * the connection is lost
+	 *
+	 * @return the sum of the shards summed by this connection
+	 */
+	private long drain(Connection connection, long[] operands, ConcurrentLinkedQueue<int[]> shards) {
+		var sum = 0L;
+		try {
+			if (connection.sc == null) {
+				connection.sc = profile.connect(connection.server);
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Cannot connect to " + connection.server, e);
+			return 0;
+		}
+		for (var shard = shards.poll(); shard != null; shard = shards.poll()) {
+			try {
+				connection.deadline = System.nanoTime() + shardTimeout;
+				var partial = ClientLongSum.requestSum(connection.sc, operands, shard[0], shard[1]);
+				if (partial.isEmpty()) {
+					throw new IOException("connection closed by " + connection.server);
+				}
+				sum += partial.getAsLong();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Connection lost with " + connection.server, e);
+				connection.silentlyClose();
+				shards.add(shard);
+				return sum;
+			} finally {
+				connection.deadline = Long.MAX_VALUE;
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * @return the sum of operands, modulo 2^64
+	 * @throws IOException          if no connection can sum the remaining shards
+	 * @throws InterruptedException
+	 */
+	public long sum(long[] operands) throws IOException, InterruptedException {
+		var shardSize = (int) Math.max(1, Math.min(MAX_SHARD_SIZE,
+				((long) operands.length + SHARDS_PER_CONNECTION * connections.size() - 1)
+						/ (SHARDS_PER_CONNECTION * connections.size())));
+		var shards = new ConcurrentLinkedQueue<int[]>();
+		for (int from = 0; from < operands.length; from += shardSize) {
+			shards.add(new int[] { from, Math.min(operands.length, from + shardSize) });
+		}
+		var sum = 0L;
+		while (!shards.isEmpty()) {
+			var remaining = shards.size();
+			var futures = new ArrayList<Future<Long>>();
+			for (var connection : connections) {
+				futures.add(executor.submit(() -> drain(connection, operands, shards)));
+			}
+			for (var future : futures) {
+				sum += await(future);
+			}
+			if (shards.size() == remaining) {
+				throw new IOException("no connection available, " + remaining + " shards left");
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Waits for the result of future, aborting meanwhile the connections whose
+	 * shard is late. An aborted connection gives its shard back to the queue and
+	 * its task ends.
+	 */
+	private long await(Future<Long> future) throws InterruptedException {
+		while (true) {
+			var now = System.nanoTime();
+			var next = now + shardTimeout;
+			for (var connection : connections) {
+				var deadline = connection.deadline;
+				if (deadline <= now) {
+					logger.warning("No answer in time from " + connection.server);
+					connection.abort();
+				} else {
+					next = Math.min(next, deadline);
+				}
+			}
+			try {
+				return future.get(next - now, TimeUnit.NANOSECONDS);
+			} catch (TimeoutException e) {
+				// check the deadlines again
+			} catch (ExecutionException e) {
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+		for (var connection : connections) {
+			connection.silentlyClose();
+		}
+	}
+
+	private static long single(InetSocketAddress server, long[] operands) throws IOException {
+		try (var sc = SocketProfile.fromSystemProperty().connect(server)) {
+			return ClientLongSum.requestSum(sc, operands, 0, operands.length)
+					.orElseThrow(() -> new IOException("connection closed by " + server));
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 3) {
+			usage();
+			return;
+		}
+		var operands = new Random().longs(Integer.parseInt(args[0])).toArray();
+		var connectionsPerServer = Integer.parseInt(args[1]);
+		var servers = new ArrayList<InetSocketAddress>();
+		for (var arg : List.of(args).subList(2, args.length)) {
+			var separator = arg.lastIndexOf(':');
+			servers.add(new InetSocketAddress(arg.substring(0, separator), Integer.parseInt(arg.substring(separator + 1))));
+		}
+		var expected = LongStream.of(operands).sum();
+
+		var start = System.nanoTime();
+		if (single(servers.get(0), operands) != expected) {
+			System.err.println("Oups! Something wrong happens!");
+		}
+		logger.info(String.format("1 connection : %d ms", (System.nanoTime() - start) / 1_000_000));
+
+		try (var client = new ParallelClientLongSum(servers, connectionsPerServer)) {
+			start = System.nanoTime();
+			if (client.sum(operands) != expected) {
+				System.err.println("Oups! Something wrong happens!");
+			}
+			logger.info(String.format("%d connections : %d ms", servers.size() * connectionsPerServer,
+					(System.nanoTime() - start) / 1_000_000));
+		}
+	}
+
+	private static void usage() {
+		System.out.println("Usage : ParallelClientLongSum operands connectionsPerServer host:port ...");
+	}
+}
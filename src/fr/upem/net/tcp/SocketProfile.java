@@ -0,0 +1,117 @@
+package fr.upem.net.tcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Locale;
+
+/**
+ * Named set of socket options shared by the servers and the clients.
+ *
+ * DEFAULT keeps the options of the system, LOW_LATENCY disables Nagle's
+ * algorithm so that small frames leave at once, BULK asks for large socket
+ * buffers so that the TCP window is not the limit of long transfers. The
+ * buffer sizes are set before bind or connect, so that they are taken into
+ * account by the window scaling negotiated with the peer.
+ *
+ * Every profile binds the listening channels with a backlog of BACKLOG
+ * pending connections, instead of the 50 of the JDK, the system may cap it.
+ */
+public enum SocketProfile {
+	DEFAULT(false, false, 0), LOW_LATENCY(true, true, 0), BULK(false, true, 1_024 * 1_024);
+
+	/**
+	 * System property naming the profile used when none is given, default,
+	 * low-latency or bulk
+	 */
+	public static final String PROPERTY = "fr.upem.net.tcp.socketProfile";
+	public static final int BACKLOG = 1_024;
+
+	private final boolean noDelay;
+	private final boolean keepAlive;
+	private final int bufferSize; // 0 for the size chosen by the system
+
+	private SocketProfile(boolean noDelay, boolean keepAlive, int bufferSize) {
+		this.noDelay = noDelay;
+		this.keepAlive = keepAlive;
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Sets the options of the profile on sc, before it is connected
+	 *
+	 * @throws IOException
+	 */
+	public void configure(SocketChannel sc) throws IOException {
+		if (noDelay) {
+			sc.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		}
+		if (keepAlive) {
+			sc.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+		}
+		if (bufferSize != 0) {
+			sc.setOption(StandardSocketOptions.SO_RCVBUF, bufferSize);
+			sc.setOption(StandardSocketOptions.SO_SNDBUF, bufferSize);
+		}
+	}
+
+	/**
+	 * Sets the options of the profile on ssc, before it is bound. The accepted
+	 * channels inherit its receive buffer, they must still be configured.
+	 *
+	 * @throws IOException
+	 */
+	public void configure(ServerSocketChannel ssc) throws IOException {
+		if (bufferSize != 0) {
+			ssc.setOption(StandardSocketOptions.SO_RCVBUF, bufferSize);
+		}
+	}
+
+	/**
+	 * @return a channel, configured and bound to port with a backlog of BACKLOG
+	 * @throws IOException
+	 */
+	public ServerSocketChannel bind(int port) throws IOException {
+		var ssc = ServerSocketChannel.open();
+		try {
+			configure(ssc);
+			ssc.bind(new InetSocketAddress(port), BACKLOG);
+			return ssc;
+		} catch (IOException e) {
+			ssc.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return a blocking channel, configured and connected to server
+	 * @throws IOException
+	 */
+	public SocketChannel connect(SocketAddress server) throws IOException {
+		var sc = SocketChannel.open();
+		try {
+			configure(sc);
+			sc.connect(server);
+			return sc;
+		} catch (IOException | RuntimeException e) {
+			sc.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the profile named by the system property PROPERTY, DEFAULT if it
+	 *         is not set
+	 */
+	public static SocketProfile fromSystemProperty() {
+		var value = System.getProperty(PROPERTY, "default");
+		try {
+			return valueOf(value.toUpperCase(Locale.ROOT).replace('-', '_'));
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("unknown socket profile " + value, e);
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package fr.upem.net.tcp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Compares the SocketProfiles on OnDemandConcurrentLongSumServer, the server
+ * and the client using the same profile.
+ *
+ * The latency is measured on requests of one operand, the header and the
+ * operand sent by two writes so that Nagle's algorithm holds the second one.
+ * The throughput is measured on requests of many operands.
+ */
+public class SocketProfileBenchmark {
+
+	private static final Logger logger = Logger.getLogger(SocketProfileBenchmark.class.getName());
+	private static final int CHUNK_SIZE = 64 * 1_024;
+	private static final int BULK_REQUESTS = 5;
+
+	private static long readSum(SocketChannel sc, ByteBuffer answer) throws IOException {
+		answer.clear();
+		while (answer.hasRemaining()) {
+			if (sc.read(answer) == -1) {
+				throw new IOException("connection closed before the answer");
+			}
+		}
+		return answer.flip().getLong();
+	}
+
+	/**
+	 * @return the duration of each request in nanoseconds, sorted
+	 */
+	private static long[] latencies(SocketChannel sc, int rounds) throws IOException {
+		var header = ByteBuffer.allocate(Integer.BYTES);
+		var operand = ByteBuffer.allocate(Long.BYTES);
+		var answer = ByteBuffer.allocate(Long.BYTES);
+		var latencies = new long[rounds];
+		for (int i = 0; i < rounds; i++) {
+			var start = System.nanoTime();
+			sc.write(header.clear().putInt(1).flip());
+			sc.write(operand.clear().putLong(i).flip());
+			if (readSum(sc, answer) != i) {
+				throw new IllegalStateException("wrong sum");
+			}
+			latencies[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(latencies);
+		return latencies;
+	}
+
+	/**
+	 * @return the number of bytes sent per second
+	 */
+	private static double throughput(SocketChannel sc, int operands) throws IOException {
+		var chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+		var answer = ByteBuffer.allocate(Long.BYTES);
+		var start = System.nanoTime();
+		for (int request = 0; request < BULK_REQUESTS; request++) {
+			chunk.clear().putInt(operands);
+			for (int i = 0; i < operands; i++) {
+				if (chunk.remaining() < Long.BYTES) {
+					sc.write(chunk.flip());
+					chunk.compact();
+				}
+				chunk.putLong(1);
+			}
+			chunk.flip();
+			while (chunk.hasRemaining()) {
+				sc.write(chunk);
+			}
+			if (readSum(sc, answer) != operands) {
+				throw new IllegalStateException("wrong sum");
+			}
+		}
+		var seconds = (System.nanoTime() - start) / 1e9;
+		return BULK_REQUESTS * (Integer.BYTES + (double) operands * Long.BYTES) / seconds;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3) {
+			usage();
+			return;
+		}
+		var port = Integer.parseInt(args[0]);
+		var rounds = Integer.parseInt(args[1]);
+		var operands = Integer.parseInt(args[2]);
+
+		for (var profile : SocketProfile.values()) {
+			var profilePort = port + profile.ordinal();
+			var server = new OnDemandConcurrentLongSumServer(profilePort, profile);
+			var serverThread = new Thread(() -> {
+				try {
+					server.launch();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+			serverThread.setDaemon(true);
+			serverThread.start();
+
+			try (var sc = profile.connect(new InetSocketAddress("localhost", profilePort))) {
+				var latencies = latencies(sc, rounds);
+				var bytesPerSecond = throughput(sc, operands);
+				logger.info(String.format("%s : median %d us, p99 %d us, %.1f MB/s", profile,
+						latencies[rounds / 2] / 1_000, latencies[rounds * 99 / 100] / 1_000, bytesPerSecond / 1e6));
+			}
+		}
+	}
+
+	private static void usage() {
+		System.out.println("Usage : SocketProfileBenchmark port rounds operands");
+	}
+}
@@ -6,77 +6,262 @@ import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+/**
+ * Fake server replaying recorded responses, for tests and benchmarks.
+ *
+ * The content is written in fragments whose sizes cycle through a pattern, with
+ * a delay after each write and an optional bandwidth limit. The historical
+ * constructors serve one connection and sleep 100 ms between writes.
+ */
 public class FakeHTTPServer {
 
+    public static class Builder {
+        private final List<byte[]> responses = new ArrayList<>();
+        private int[] fragments = {1_024};
+        private long delayMillis = 0;
+        private long bytesPerSecond = 0;
+        private int repeat = 1;
+        private int maxConnections = 1;
+        private boolean perRequest = false;
+
+        /**
+         * Adds a response, responses are replayed in the order they were added
+         */
+        public Builder addResponse(byte[] response) {
+            responses.add(Objects.requireNonNull(response));
+            return this;
+        }
+
+        public Builder addResponse(String response) {
+            return addResponse(response.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * @param fragments sizes of the successive writes, the pattern is repeated
+         */
+        public Builder setFragments(int... fragments) {
+            if (fragments.length == 0) {
+                throw new IllegalArgumentException("empty fragmentation pattern");
+            }
+            for (var fragment : fragments) {
+                if (fragment <= 0) {
+                    throw new IllegalArgumentException("fragments must be positive");
+                }
+            }
+            this.fragments = fragments.clone();
+            return this;
+        }
+
+        /**
+         * @param delayMillis pause after each write, 0 for none
+         */
+        public Builder setDelay(long delayMillis) {
+            if (delayMillis < 0) {
+                throw new IllegalArgumentException("negative delay");
+            }
+            this.delayMillis = delayMillis;
+            return this;
+        }
+
+        /**
+         * @param bytesPerSecond bandwidth of each connection, 0 for no limit
+         */
+        public Builder setBandwidth(long bytesPerSecond) {
+            if (bytesPerSecond < 0) {
+                throw new IllegalArgumentException("negative bandwidth");
+            }
+            this.bytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * @param repeat number of times the responses are replayed on a connection,
+         *               0 to replay them until the client leaves
+         */
+        public Builder setRepeat(int repeat) {
+            if (repeat < 0) {
+                throw new IllegalArgumentException("negative repeat");
+            }
+            this.repeat = repeat;
+            return this;
+        }
+
+        /**
+         * @param maxConnections number of connections served, 0 for no limit
+         */
+        public Builder setMaxConnections(int maxConnections) {
+            if (maxConnections < 0) {
+                throw new IllegalArgumentException("negative maxConnections");
+            }
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        /**
+         * @param perRequest if true, a response is sent each time a request header
+         *                   is received instead of streaming all the responses
+         */
+        public Builder setPerRequest(boolean perRequest) {
+            this.perRequest = perRequest;
+            return this;
+        }
+
+        public FakeHTTPServer build() throws IOException {
+            if (responses.isEmpty()) {
+                throw new IllegalStateException("no response to replay");
+            }
+            return new FakeHTTPServer(this);
+        }
+    }
+
     private final ServerSocketChannel ss;
     private final int port;
-    private final ByteBuffer content;
+    private final List<ByteBuffer> responses; // read-mode, never modified
+    private final int[] fragments;
+    private final long delayMillis;
+    private final long bytesPerSecond;
+    private final int repeat;
+    private final int maxConnections;
+    private final boolean perRequest;
+    private final List<Thread> threads = new CopyOnWriteArrayList<>();
     private final Thread t;
 
 
-    public FakeHTTPServer(String s, int max) throws IOException {
+    private FakeHTTPServer(Builder builder) throws IOException {
         ss = ServerSocketChannel.open();
         ss.bind(null);
         InetSocketAddress address = (InetSocketAddress) ss.getLocalAddress();
         port = address.getPort();
-        content = ByteBuffer.wrap(s.getBytes("UTF-8"));
-        this.t = new Thread(() ->
-        {
-            SocketChannel sc = null;
-            try {
-                sc = ss.accept();
-                while (!Thread.interrupted() && content.hasRemaining()) {
-                    var oldlimit = content.limit();
-                    content.limit(Math.min(content.position() + max, oldlimit));
-                    sc.write(content);
-                    Thread.sleep(100);
-                    content.limit(oldlimit);
+        responses = new ArrayList<>();
+        for (var response : builder.responses) {
+            responses.add(ByteBuffer.wrap(response.clone()).asReadOnlyBuffer());
+        }
+        fragments = builder.fragments;
+        delayMillis = builder.delayMillis;
+        bytesPerSecond = builder.bytesPerSecond;
+        repeat = builder.repeat;
+        maxConnections = builder.maxConnections;
+        perRequest = builder.perRequest;
+        this.t = new Thread(this::acceptLoop);
+    }
+
+    public FakeHTTPServer(String s, int max) throws IOException {
+        this(new Builder().addResponse(s).setFragments(max).setDelay(100));
+    }
+
+    public FakeHTTPServer(InputStream in) throws IOException {
+        this(new Builder().addResponse(in.readAllBytes()).setFragments(100).setDelay(100));
+    }
+
+    private void acceptLoop() {
+        try {
+            for (int served = 0; maxConnections == 0 || served < maxConnections; served++) {
+                var sc = ss.accept();
+                if (maxConnections == 1) {
+                    threads.add(Thread.currentThread());
+                    serve(sc);
+                    return;
                 }
-            } catch (Exception e) {
+                var thread = new Thread(() -> serve(sc));
+                thread.setDaemon(true);
+                threads.add(thread);
+                thread.start();
+            }
+        } catch (IOException e) {
+            //
+        } finally {
+            try {
+                ss.close();
+            } catch (IOException e) {
                 //
-            } finally {
-                try {
-                    if (sc != null) sc.close();
-                    ss.close();
-                } catch (Exception e) {
-                    //
-                }
             }
-        });
+        }
     }
 
-    public FakeHTTPServer(InputStream in) throws IOException {
-        ss = ServerSocketChannel.open();
-        ss.bind(null);
-        InetSocketAddress address = (InetSocketAddress) ss.getLocalAddress();
-        port = address.getPort();
-        content=null;
-        this.t = new Thread(() ->
-        {
-            SocketChannel sc = null;
-            try {
-                sc = ss.accept();
-                byte[] buff = new byte[100];
-                ByteBuffer bb = ByteBuffer.wrap(buff);
-                int read=0;
-                while (!Thread.interrupted()&& (read=in.read(buff))!=-1){
-                    bb.clear();
-                    bb.limit(read);
-                    sc.write(bb);
-                    Thread.sleep(100);
+    private void serve(SocketChannel sc) {
+        try {
+            var requests = ByteBuffer.allocate(1_024);
+            var start = System.nanoTime();
+            var fragment = 0;
+            var written = 0L;
+            for (int round = 0; repeat == 0 || round < repeat; round++) {
+                for (var response : responses) {
+                    if (perRequest && !waitRequest(sc, requests)) {
+                        return;
+                    }
+                    var content = response.duplicate();
+                    while (!Thread.currentThread().isInterrupted() && content.hasRemaining()) {
+                        var oldlimit = content.limit();
+                        content.limit(Math.min(content.position() + fragments[fragment], oldlimit));
+                        fragment = (fragment + 1) % fragments.length;
+                        written += sc.write(content);
+                        content.limit(oldlimit);
+                        pause(start, written);
+                    }
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
                 }
-            } catch (Exception e) {
+            }
+        } catch (Exception e) {
+            //
+        } finally {
+            try {
+                sc.close();
+            } catch (IOException e) {
                 //
-            } finally {
-                try {
-                    if (sc != null) sc.close();
-                    ss.close();
-                } catch (Exception e) {
-                    //
+            }
+        }
+    }
+
+    /**
+     * Sleeps after a write for the configured delay and, if the bandwidth is
+     * limited, until the bytes written are due
+     */
+    private void pause(long start, long written) throws InterruptedException {
+        if (delayMillis > 0) {
+            Thread.sleep(delayMillis);
+        }
+        if (bytesPerSecond > 0) {
+            var dueNanos = written * 1_000_000_000L / bytesPerSecond;
+            var aheadNanos = dueNanos - (System.nanoTime() - start);
+            if (aheadNanos > 0) {
+                Thread.sleep(aheadNanos / 1_000_000, (int) (aheadNanos % 1_000_000));
+            }
+        }
+    }
+
+    /**
+     * Reads on sc until the end of a request header, the bytes following it are
+     * kept in requests
+     *
+     * @param requests a ByteBuffer in write-mode
+     * @return false if the client closed the connection
+     */
+    private static boolean waitRequest(SocketChannel sc, ByteBuffer requests) throws IOException {
+        while (true) {
+            for (int i = 0; i + 3 < requests.position(); i++) {
+                if (requests.get(i) == '\r' && requests.get(i + 1) == '\n' && requests.get(i + 2) == '\r'
+                        && requests.get(i + 3) == '\n') {
+                    requests.flip().position(i + 4);
+                    requests.compact();
+                    return true;
                 }
             }
-        });
+            if (!requests.hasRemaining()) { // request too long for a fake server, forget its start
+                requests.flip().position(requests.limit() - 3);
+                requests.compact();
+            }
+            if (sc.read(requests) == -1) {
+                return false;
+            }
+        }
     }
 
     public void serve() {
@@ -85,6 +270,9 @@ public class FakeHTTPServer {
 
     public void shutdown() {
         t.interrupt();
+        for (var thread : threads) {
+            thread.interrupt();
+        }
     }
 
 
@@ -93,4 +281,3 @@ public class FakeHTTPServer {
         return port;
     }
 }
-
@@ -0,0 +1,91 @@
+package fr.upem.net.tcp.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Streams the body of a HTTP response without holding it in memory.
+ *
+ * The body is either delimited by Content-Length, sent in chunks or delimited by
+ * the end of the connection. The bytes already read by the HTTPReader are
+ * returned first, the socket is then read directly into the buffers of the
+ * caller. Closing this channel does not close the connection.
+ */
+public class HTTPBodyChannel implements ReadableByteChannel {
+
+	private final HTTPReader reader;
+	private final boolean chunked;
+	private long remaining; // in the body or in the current chunk, -1 until the end of the connection
+	private boolean firstChunk = true;
+	private boolean eof = false;
+	private boolean open = true;
+
+	HTTPBodyChannel(HTTPReader reader, HTTPHeader header) throws HTTPException {
+		this.reader = reader;
+		this.chunked = header.isChunkedTransfer();
+		var code = header.getCode();
+		if (chunked) {
+			remaining = 0;
+		} else if (code / 100 == 1 || code == 204 || code == 304) {
+			remaining = 0;
+		} else {
+			remaining = header.getContentLength();
+		}
+	}
+
+	/**
+	 * Reads the size line of the next chunk, and the CRLF ending the previous one
+	 *
+	 * @return false if this was the last chunk
+	 * @throws IOException
+	 */
+	private boolean nextChunk() throws IOException {
+		if (!firstChunk) {
+			HTTPException.ensure(reader.readLineCRLF().isEmpty(), "Chunk not terminated by CRLF");
+		}
+		firstChunk = false;
+		remaining = reader.readChunkSize();
+		return remaining != 0;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+		if (eof) {
+			return -1;
+		}
+		if (!dst.hasRemaining()) {
+			return 0;
+		}
+		if (remaining == 0 && (!chunked || !nextChunk())) {
+			eof = true;
+			return -1;
+		}
+		var read = reader.read(dst, remaining);
+		if (read == -1) {
+			if (remaining > 0) {
+				throw new HTTPException("Connection closed before the end of the body");
+			}
+			eof = true;
+			return -1;
+		}
+		if (remaining > 0) {
+			remaining -= read;
+		}
+		return read;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() {
+		open = false;
+	}
+}
@@ -5,40 +5,70 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.UnresolvedAddressException;
 import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import fr.upem.net.tcp.SocketProfile;
+
 
 public class HTTPClient {
 
+	/**
+	 * A request waiting for its response on a pipelined connection
+	 */
+	static private class PendingRequest {
+		private final URL url;
+		private final CompletableFuture<String> future = new CompletableFuture<>();
+
+		private PendingRequest(URL url) {
+			this.url = url;
+		}
+	}
+
 	private SocketChannel sc;
 	private HTTPReader httpReader;
 	private final ByteBuffer bb;
-	private String request;
+	private String host;
+	private String ressource;
 
 	static private final int BUFFER_SIZE = 1024;
+	static private final int DEFAULT_PORT = 80;
+	static private final int CONNECTIONS_PER_HOST = 2;
+	static private final int PIPELINE_DEPTH = 16;
+	static private final int MAX_THREADS = 64;
+	static private final SocketProfile SOCKET_PROFILE = SocketProfile.fromSystemProperty();
 	static private final Charset charsetASCII = Charset.forName("ASCII");
 	public static final Logger logger = Logger.getLogger(HTTPClient.class.getName());
 
-	private HTTPClient(SocketChannel sc, String request) {
+	private HTTPClient(SocketChannel sc, String host, String ressource) {
 		this.sc = sc;
 		this.bb = ByteBuffer.allocateDirect(BUFFER_SIZE);
 		this.httpReader = new HTTPReader(sc, bb);
-		this.request = request;
+		this.host = host;
+		this.ressource = ressource;
 	}
 
 	public static HTTPClient connectClient(String server, String ressource) throws IOException {
 		Objects.requireNonNull(server);
 		try {
-			var sc = SocketChannel.open();
-			sc.connect(new InetSocketAddress(server, 80));
-
-			String request = "GET " + ressource + " HTTP/1.1\r\n" + "Host: " + server + "\r\n" + "\r\n";
+			var sc = SOCKET_PROFILE.connect(new InetSocketAddress(server, DEFAULT_PORT));
 
-			return new HTTPClient(sc, request);
+			return new HTTPClient(sc, server, ressource);
 		} catch (UnresolvedAddressException e) {
 			throw new HTTPException("Failed to connect to server " + server);
 		} catch (SecurityException e) {
@@ -46,48 +76,367 @@ public class HTTPClient {
 		}
 	}
 
-	String getRessources() throws IOException {
-		HTTPHeader header;
+	static String buildRequest(String host, String ressource) {
+		return buildRequest(host, ressource, "");
+	}
+
+	/**
+	 * @param extraFields additional header lines, each terminated by CRLF
+	 */
+	static String buildRequest(String host, String ressource, String extraFields) {
+		return "GET " + ressource + " HTTP/1.1\r\n" + "Host: " + host + "\r\n" + extraFields + "\r\n";
+	}
+
+	private static String ressourceOf(URL url) {
+		var file = url.getFile();
+		return file.isEmpty() ? "/" : file;
+	}
+
+	private static InetSocketAddress addressOf(URL url) {
+		var port = url.getPort() == -1 ? DEFAULT_PORT : url.getPort();
+		return new InetSocketAddress(url.getHost(), port);
+	}
+
+	/**
+	 * Sends the request, following the redirections, and reads the header of the
+	 * final response
+	 *
+	 * @param extraFields additional header lines, each terminated by CRLF
+	 * @return the header of the response, its body is still to be read
+	 * @throws IOException
+	 */
+	private HTTPHeader sendRequest(String extraFields) throws IOException {
 		while (true) {
 			bb.clear();
-			sc.write(charsetASCII.encode(request));
-			header = httpReader.readHeader();
+			sc.write(charsetASCII.encode(buildRequest(host, ressource, extraFields)));
+			var header = httpReader.readHeader();
+			var code = header.getCode();
+			if (code != 302 && code != 301) {
+				return header;
+			}
+			// redirection
+			var url = new URL(header.getField("location"));
+			host = url.getHost();
+			ressource = ressourceOf(url);
+			sc.close();
+			sc = SOCKET_PROFILE.connect(addressOf(url));
+			httpReader = new HTTPReader(sc, bb);
+		}
+	}
+
+	String getRessources() throws IOException {
+		var header = sendRequest("");
+		if (header.getCode() == 400) { // error
+			return "";
+		}
+		return decode(header, readBody(httpReader, header));
+	}
+
+	/**
+	 * Sends the request and returns the body of the response as a stream, so
+	 * that resources of any size are read in constant memory
+	 *
+	 * @return a channel reading the body, it must be consumed before any other
+	 *         request
+	 * @throws IOException
+	 */
+	public ReadableByteChannel getRessourcesChannel() throws IOException {
+		return new HTTPBodyChannel(httpReader, sendRequest(""));
+	}
+
+	/**
+	 * Writes the body of the response into fc, starting at its current position
+	 *
+	 * @return the number of bytes written in fc
+	 * @throws IOException
+	 */
+	public long downloadTo(FileChannel fc) throws IOException {
+		var position = fc.position();
+		var written = transferBody(sendRequest(""), fc, position);
+		fc.position(position + written);
+		return written;
+	}
+
+	/**
+	 * Downloads the ressource into target. The body goes from the socket to the
+	 * file with FileChannel.transferFrom once the header has been parsed.
+	 *
+	 * If resume is true and target already exists, only the missing end of the
+	 * ressource is requested with a Range field. The file is rewritten from the
+	 * start if the server ignores the range.
+	 *
+	 * @return the number of bytes written during this call
+	 * @throws IOException HTTPException if the server answers with an error
+	 */
+	public long download(Path target, boolean resume) throws IOException {
+		try (var fc = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			var offset = resume ? fc.size() : 0;
+			fc.truncate(offset);
+			var header = sendRequest(offset == 0 ? "" : "Range: bytes=" + offset + "-\r\n");
 			var code = header.getCode();
-			if (code == 302 || code == 301) { // redirection
-				var url = new URL(header.getFields().get("location"));
-				request = "GET " + url.getPath() + " HTTP/1.1\r\n" + "Host: " + url.getHost() + "\r\n" + "\r\n";
-				sc.close();
-				sc = SocketChannel.open();
-				sc.connect(new InetSocketAddress(url.getHost(), 80));
-				httpReader = new HTTPReader(sc, bb);
-
-			} else if (code == 400) { // error
-				return "";
-			} else { // 200
-				int contentLength = header.getContentLength();
-				ByteBuffer content = httpReader.readBytes(contentLength);
-				content.flip();
-				
-				var cs = header.getCharset();
-				if( cs != null) {
-					return cs.decode(content).toString();
+			if (code == 416) { // nothing left to download
+				readBody(httpReader, header);
+				return 0;
+			}
+			HTTPException.ensure(code / 100 == 2, "Download of " + ressource + " failed with code " + code);
+			if (code != 206) { // range ignored, the whole ressource is sent
+				offset = 0;
+				fc.truncate(0);
+			} else {
+				var range = header.getField("content-range");
+				HTTPException.ensure(range != null && range.startsWith("bytes " + offset + "-"),
+						"Unexpected Content-Range : " + range);
+			}
+			return transferBody(header, fc, offset);
+		}
+	}
+
+	/**
+	 * Transfers the body announced by header into fc at position
+	 *
+	 * @return the number of bytes written in fc
+	 * @throws IOException
+	 */
+	private long transferBody(HTTPHeader header, FileChannel fc, long position) throws IOException {
+		var code = header.getCode();
+		if (code / 100 == 1 || code == 204 || code == 304) {
+			return 0;
+		}
+		if (!header.isChunkedTransfer()) {
+			return httpReader.transferTo(fc, position, header.getContentLength());
+		}
+		var transferred = 0L;
+		while (true) {
+			var size = httpReader.readChunkSize();
+			if (size == 0) {
+				return transferred;
+			}
+			transferred += httpReader.transferTo(fc, position + transferred, size);
+			HTTPException.ensure(httpReader.readLineCRLF().isEmpty(), "Chunk not terminated by CRLF");
+		}
+	}
+
+	/**
+	 * Reads the body announced by header, either chunked, sized by Content-Length
+	 * or delimited by the end of the connection
+	 *
+	 * @return a ByteBuffer in write-mode containing the body
+	 * @throws IOException
+	 */
+	private static ByteBuffer readBody(HTTPReader reader, HTTPHeader header) throws IOException {
+		if (header.isChunkedTransfer()) {
+			return reader.readChunks();
+		}
+		var code = header.getCode();
+		if (code / 100 == 1 || code == 204 || code == 304) {
+			return ByteBuffer.allocate(0);
+		}
+		var contentLength = header.getContentLength();
+		if (contentLength == -1) {
+			return reader.readAll();
+		}
+		return reader.readBytes(contentLength);
+	}
+
+	/**
+	 * @param content a ByteBuffer in write-mode
+	 * @return the content decoded with the charset of the header, UTF8 by default
+	 */
+	private static String decode(HTTPHeader header, ByteBuffer content) {
+		content.flip();
+		var cs = header.getCharset();
+		if (cs != null) {
+			return cs.decode(content).toString();
+		}
+		return Charset.forName("UTF8").decode(content).toString();
+	}
+
+	/**
+	 * @return true if the server will keep the connection open after this response
+	 */
+	private static boolean isPersistent(HTTPHeader header) throws HTTPException {
+		var connection = header.getField("connection");
+		if (connection != null) {
+			return !connection.equalsIgnoreCase("close");
+		}
+		return header.getVersion().equals("HTTP/1.1") && (header.isChunkedTransfer() || header.getContentLength() != -1);
+	}
+
+	/**
+	 * Fetches all the urls concurrently.
+	 *
+	 * The urls are grouped by host, each host gets up to connectionsPerHost
+	 * connections and the requests of a connection are pipelined, so the total time
+	 * is bounded by the bandwidth rather than by the sum of the round trips.
+	 *
+	 * @param urls               http urls to fetch
+	 * @param executor           runs one task per connection
+	 * @param connectionsPerHost maximum number of connections opened to a host
+	 * @return the futures of the bodies, in the order of urls
+	 */
+	public static List<CompletableFuture<String>> fetchAll(List<URL> urls, ExecutorService executor,
+			int connectionsPerHost) {
+		Objects.requireNonNull(executor);
+		if (connectionsPerHost <= 0) {
+			throw new IllegalArgumentException("connectionsPerHost must be positive");
+		}
+		var pendings = new ArrayList<PendingRequest>(urls.size());
+		var byHost = new LinkedHashMap<InetSocketAddress, List<PendingRequest>>();
+		for (var url : urls) {
+			if (!url.getProtocol().equals("http")) {
+				throw new IllegalArgumentException("Only http urls are supported : " + url);
+			}
+			var pending = new PendingRequest(url);
+			pendings.add(pending);
+			byHost.computeIfAbsent(addressOf(url), k -> new ArrayList<>()).add(pending);
+		}
+		for (var entry : byHost.entrySet()) {
+			var requests = entry.getValue();
+			var nbConnections = Math.min(connectionsPerHost, requests.size());
+			for (int i = 0; i < nbConnections; i++) {
+				var share = new ArrayDeque<PendingRequest>();
+				for (int j = i; j < requests.size(); j += nbConnections) {
+					share.add(requests.get(j));
+				}
+				executor.execute(() -> pipeline(entry.getKey(), share));
+			}
+		}
+		var futures = new ArrayList<CompletableFuture<String>>(pendings.size());
+		for (var pending : pendings) {
+			futures.add(pending.future);
+		}
+		return futures;
+	}
+
+	/**
+	 * Fetches all the urls concurrently with a private thread pool
+	 *
+	 * @see #fetchAll(List, ExecutorService, int)
+	 */
+	public static List<CompletableFuture<String>> fetchAll(List<URL> urls) {
+		var executor = Executors.newFixedThreadPool(Math.max(1, Math.min(MAX_THREADS, urls.size())));
+		try {
+			return fetchAll(urls, executor, CONNECTIONS_PER_HOST);
+		} finally {
+			executor.shutdown(); // already submitted tasks still run
+		}
+	}
+
+	/**
+	 * Sends the requests on a connection to address, keeping at most
+	 * PIPELINE_DEPTH requests in flight, and completes the futures in order.
+	 * A new connection is opened for the remaining requests when the server closes
+	 * the current one. Any other failure fails the remaining requests, so that
+	 * every future completes.
+	 */
+	private static void pipeline(InetSocketAddress address, ArrayDeque<PendingRequest> requests) {
+		var bb = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		while (!requests.isEmpty()) {
+			var completed = 0;
+			try (var sc = SOCKET_PROFILE.connect(address)) {
+				bb.clear();
+				var reader = new HTTPReader(sc, bb);
+				var inFlight = new ArrayDeque<PendingRequest>();
+				var persistent = true;
+				while (persistent && !requests.isEmpty()) {
+					sendRequests(sc, requests, inFlight);
+					var pending = inFlight.poll();
+					var header = reader.readHeader();
+					var body = readBody(reader, header);
+					persistent = isPersistent(header);
+					requests.remove();
+					completed++;
+					complete(pending, header, body);
+				}
+			} catch (IOException e) {
+				if (completed == 0) {
+					logger.log(Level.INFO, "Pipelined connection to " + address + " failed", e);
+					for (var pending : requests) {
+						pending.future.completeExceptionally(e);
+					}
+					return;
+				}
+				// the server closed a connection that did progress, retry the rest
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, "Pipelined connection to " + address + " failed", e);
+				for (var pending : requests) {
+					pending.future.completeExceptionally(e);
 				}
-				return Charset.forName("UTF8").decode(content).toString();
+				return;
 			}
 		}
 	}
 
+	/**
+	 * Writes the requests not yet sent so that PIPELINE_DEPTH requests are in flight
+	 */
+	private static void sendRequests(SocketChannel sc, ArrayDeque<PendingRequest> requests,
+			ArrayDeque<PendingRequest> inFlight) throws IOException {
+		var builder = new StringBuilder();
+		var it = requests.iterator();
+		for (int i = 0; i < inFlight.size(); i++) {
+			it.next();
+		}
+		while (inFlight.size() < PIPELINE_DEPTH && it.hasNext()) {
+			var pending = it.next();
+			builder.append(buildRequest(pending.url.getHost(), ressourceOf(pending.url)));
+			inFlight.add(pending);
+		}
+		if (builder.length() == 0) {
+			return;
+		}
+		var out = charsetASCII.encode(builder.toString());
+		while (out.hasRemaining()) {
+			sc.write(out);
+		}
+	}
+
+	private static void complete(PendingRequest pending, HTTPHeader header, ByteBuffer body) {
+		var code = header.getCode();
+		try {
+			if (code == 301 || code == 302) {
+				var url = new URL(header.getField("location"));
+				var client = new HTTPClient(SOCKET_PROFILE.connect(addressOf(url)), url.getHost(), ressourceOf(url));
+				try {
+					pending.future.complete(client.getRessources());
+				} finally {
+					client.closeConnection();
+				}
+			} else if (code == 400) {
+				pending.future.complete("");
+			} else {
+				pending.future.complete(decode(header, body));
+			}
+		} catch (IOException | RuntimeException e) {
+			pending.future.completeExceptionally(e);
+		}
+	}
+
 	public void closeConnection() throws IOException {
 		sc.close();
 	}
 
 	public static void usage() {
-		System.out.println("java fr.upem.net.tcp.http.HTTPClient server ressource");
+		System.out.println("java fr.upem.net.tcp.http.HTTPClient server ressource [file]");
+		System.out.println("java fr.upem.net.tcp.http.HTTPClient url1 url2 ...");
 	}
 
 	public static void main(String[] args) throws IOException {
 
-		if (args.length != 2) {
+		if (args.length >= 1 && args[0].startsWith("http://")) {
+			var urls = new ArrayList<URL>();
+			for (var arg : args) {
+				urls.add(new URL(arg));
+			}
+			var start = System.nanoTime();
+			var futures = fetchAll(urls);
+			for (int i = 0; i < futures.size(); i++) {
+				System.out.println(urls.get(i) + " : " + futures.get(i).join().length() + " chars");
+			}
+			System.out.println("fetched in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+			return;
+		}
+		if (args.length != 2 && args.length != 3) {
 			usage();
 			return;
 		}
@@ -95,7 +444,11 @@ public class HTTPClient {
 		String ressources = args[1];
 
 		var client = HTTPClient.connectClient(host, ressources);
-		System.out.println(client.getRessources());
+		if (args.length == 3) {
+			System.out.println(client.download(Path.of(args[2]), true) + " bytes written in " + args[2]);
+		} else {
+			System.out.println(client.getRessources());
+		}
 		client.closeConnection();
 	}
 }
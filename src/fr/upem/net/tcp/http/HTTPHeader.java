@@ -1,6 +1,7 @@
 package fr.upem.net.tcp.http;
 
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 import static fr.upem.net.tcp.http.HTTPException.ensure;
@@ -9,6 +10,11 @@ import static fr.upem.net.tcp.http.HTTPException.ensure;
 /**
  * @author carayol
  *         Class representing a HTTP header
+ *
+ *         The header is kept as the raw bytes received, each field is a slot
+ *         giving the offsets of its name and of its trimmed value. Names are
+ *         compared case-insensitively on the bytes and values are decoded only
+ *         when they are asked for.
  */
 
 public class HTTPHeader {
@@ -20,42 +26,197 @@ public class HTTPHeader {
     private static final String[] LIST_SUPPORTED_VERSIONS = new String[]{"HTTP/1.0", "HTTP/1.1", "HTTP/2.0"};
     public static final Set<String> SUPPORTED_VERSIONS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(LIST_SUPPORTED_VERSIONS)));
 
+    /**
+     * Well-known field names, recognized once when the header is parsed so that
+     * their lookup is a comparison of ints
+     */
+    private static final String[] KNOWN_FIELDS = new String[]{"content-length", "content-type", "transfer-encoding",
+            "connection", "location", "content-range", "content-encoding", "keep-alive", "date", "server"};
+    private static final int CONTENT_LENGTH = 0;
+    private static final int CONTENT_TYPE = 1;
+    private static final int TRANSFER_ENCODING = 2;
+    private static final int UNKNOWN = -1;
+
+    // a slot is {nameStart, nameLength, valueStart, valueLength, known field index}
+    private static final int SLOT_SIZE = 5;
 
     private final String response;
     private final String version;
     private final int code;
-    private final Map<String, String> fields;
+    private final byte[] raw;
+    private final int[] slots;
+    private final int fieldCount;
+    private final String[] values; // decoded lazily
+    private Map<String, String> fields; // built lazily
 
 
-    private HTTPHeader(String response, String version, int code, Map<String, String> fields) throws HTTPException {
+    private HTTPHeader(String response, String version, int code, byte[] raw, int[] slots, int fieldCount) {
         this.response = response;
         this.version = version;
         this.code = code;
-        this.fields = Collections.unmodifiableMap(fields);
+        this.raw = raw;
+        this.slots = slots;
+        this.fieldCount = fieldCount;
+        this.values = new String[fieldCount];
     }
-    
+
     public static HTTPHeader create(String response, Map<String,String> fields) throws HTTPException {
-        String[] tokens = response.split(" ");
+        var builder = new StringBuilder(response).append("\r\n");
+        for (var entry : fields.entrySet()) {
+            builder.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+        }
+        var raw = builder.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+        return parse(raw, raw.length);
+    }
+
+    /**
+     * @param raw    the bytes of the header, from the response line to the empty
+     *               line ending the header, both included. The array is not copied.
+     * @param length the number of bytes of the header in raw
+     * @return the HTTPHeader backed by raw
+     * @throws HTTPException if the header is ill-formed
+     */
+    static HTTPHeader parse(byte[] raw, int length) throws HTTPException {
+        var lineEnd = indexOfCRLF(raw, 0, length);
+        ensure(lineEnd != -1, "Missing response line");
+        var response = new String(raw, 0, lineEnd, StandardCharsets.ISO_8859_1);
         // Treatment of the response line
-        ensure(tokens.length >= 2, "Badly formed response:\n" + response);
-        String version = tokens[0];
+        var firstSpace = response.indexOf(' ');
+        ensure(firstSpace > 0, "Badly formed response:\n" + response);
+        var secondSpace = response.indexOf(' ', firstSpace + 1);
+        var codeToken = secondSpace == -1 ? response.substring(firstSpace + 1) : response.substring(firstSpace + 1, secondSpace);
+        ensure(!codeToken.isEmpty(), "Badly formed response:\n" + response);
+        String version = response.substring(0, firstSpace);
         ensure(HTTPHeader.SUPPORTED_VERSIONS.contains(version), "Unsupported version in response:\n" + response);
         int code = 0;
         try {
-            code = Integer.valueOf(tokens[1]);
+            code = Integer.parseInt(codeToken);
             ensure(code >= 100 && code < 600, "Invalid code in response:\n" + response);
         } catch (NumberFormatException e) {
             ensure(false, "Invalid response:\n" + response);
         }
 
-        Map<String,String> fieldsCopied = new HashMap<>();
-        for (String s : fields.keySet())
-            fieldsCopied.put(s.toLowerCase(),fields.get(s).trim());
-        
-        
-//        System.out.println("param :"+fields.get("Content-Type"));
-//        System.out.println("copy :"+fieldsCopied.get("content-type"));
-        return new HTTPHeader(response,version,code,fieldsCopied);
+        var slots = new int[8 * SLOT_SIZE];
+        var fieldCount = 0;
+        var lineStart = lineEnd + 2;
+        while ((lineEnd = indexOfCRLF(raw, lineStart, length)) > lineStart) {
+            var colon = lineStart;
+            while (colon < lineEnd && raw[colon] != ':') {
+                colon++;
+            }
+            ensure(colon < lineEnd && colon > lineStart,
+                    "invalid header " + new String(raw, lineStart, lineEnd - lineStart, StandardCharsets.ISO_8859_1));
+            var valueStart = colon + 1;
+            var valueEnd = lineEnd;
+            while (valueStart < valueEnd && isSpace(raw[valueStart])) {
+                valueStart++;
+            }
+            while (valueEnd > valueStart && isSpace(raw[valueEnd - 1])) {
+                valueEnd--;
+            }
+            if ((fieldCount + 1) * SLOT_SIZE > slots.length) {
+                slots = Arrays.copyOf(slots, slots.length * 2);
+            }
+            var slot = fieldCount * SLOT_SIZE;
+            slots[slot] = lineStart;
+            slots[slot + 1] = colon - lineStart;
+            slots[slot + 2] = valueStart;
+            slots[slot + 3] = valueEnd - valueStart;
+            slots[slot + 4] = knownFieldIndex(raw, lineStart, colon - lineStart);
+            fieldCount++;
+            lineStart = lineEnd + 2;
+        }
+        ensure(lineEnd == lineStart, "Header not terminated by an empty line");
+        return new HTTPHeader(response, version, code, raw, slots, fieldCount);
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    /**
+     * @return the index of the CR of the first CRLF in raw[from, to[, -1 if none
+     */
+    private static int indexOfCRLF(byte[] raw, int from, int to) {
+        for (int i = from; i < to - 1; i++) {
+            if (raw[i] == '\r' && raw[i + 1] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int knownFieldIndex(byte[] raw, int start, int length) {
+        for (int i = 0; i < KNOWN_FIELDS.length; i++) {
+            if (equalsIgnoreCase(raw, start, length, KNOWN_FIELDS[i])) {
+                return i;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * @return true if raw[start, start+length[ is name, ignoring the case
+     */
+    private static boolean equalsIgnoreCase(byte[] raw, int start, int length, String name) {
+        if (length != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (toLowerCase(raw[start + i]) != toLowerCase(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLowerCase(int c) {
+        return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+    }
+
+    private int slotOf(int knownField) {
+        for (int i = 0; i < fieldCount; i++) {
+            if (slots[i * SLOT_SIZE + 4] == knownField) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String valueOf(int field) {
+        var value = values[field];
+        if (value == null) {
+            var slot = field * SLOT_SIZE;
+            value = new String(raw, slots[slot + 2], slots[slot + 3], StandardCharsets.ISO_8859_1);
+            values[field] = value;
+        }
+        return value;
+    }
+
+    /**
+     * @param name the name of the field, in any case
+     * @return the trimmed value of the field, the values joined by ";" if the
+     *         field appears several times, null if there is no such field
+     */
+    public String getField(String name) {
+        String result = null;
+        for (int i = 0; i < fieldCount; i++) {
+            var slot = i * SLOT_SIZE;
+            if (equalsIgnoreCase(raw, slots[slot], slots[slot + 1], name)) {
+                result = (result == null) ? valueOf(i) : result + ";" + valueOf(i);
+            }
+        }
+        return result;
+    }
+
+    private String getKnownField(int knownField) {
+        String result = null;
+        for (int i = 0; i < fieldCount; i++) {
+            if (slots[i * SLOT_SIZE + 4] == knownField) {
+                result = (result == null) ? valueOf(i) : result + ";" + valueOf(i);
+            }
+        }
+        return result;
     }
 
     public String getResponse() {
@@ -70,7 +231,21 @@ public class HTTPHeader {
         return code;
     }
 
+    /**
+     * @return the fields with their names in lower case, prefer getField which
+     *         does not copy the header
+     */
     public Map<String, String> getFields() {
+        if (fields == null) {
+            var map = new HashMap<String, String>();
+            for (int i = 0; i < fieldCount; i++) {
+                var slot = i * SLOT_SIZE;
+                var name = new String(raw, slots[slot], slots[slot + 1], StandardCharsets.ISO_8859_1)
+                        .toLowerCase(Locale.ROOT);
+                map.merge(name, valueOf(i), (v1, v2) -> v1 + ";" + v2);
+            }
+            fields = Collections.unmodifiableMap(map);
+        }
         return fields;
     }
 
@@ -80,15 +255,23 @@ public class HTTPHeader {
      * @throws HTTPException when the value of Content-Length is not a number
      */
     public int getContentLength() throws HTTPException {
-        String s = fields.get("content-length");
-        if (s == null) return -1;
-        else {
-            try {
-                return Integer.valueOf(s.trim());
-            } catch (NumberFormatException e) {
-                throw new HTTPException("Invalid Content-Length field value :\n" + s);
+        var field = slotOf(CONTENT_LENGTH);
+        if (field == -1) return -1;
+        var slot = field * SLOT_SIZE;
+        var start = slots[slot + 2];
+        var length = slots[slot + 3];
+        long value = 0;
+        for (int i = start; i < start + length; i++) {
+            var b = raw[i];
+            if (b < '0' || b > '9' || length > 10) {
+                throw new HTTPException("Invalid Content-Length field value :\n" + valueOf(field));
             }
+            value = value * 10 + (b - '0');
+        }
+        if (length == 0 || value > Integer.MAX_VALUE) {
+            throw new HTTPException("Invalid Content-Length field value :\n" + valueOf(field));
         }
+        return (int) value;
     }
 
     /**
@@ -96,7 +279,7 @@ public class HTTPHeader {
      *         null if there is no Content-Type field
      */
     public String getContentType() {
-        String s = fields.get("content-type");
+        String s = getKnownField(CONTENT_TYPE);
         if (s != null) {
             return s.split(";")[0].trim();
         } else
@@ -109,7 +292,7 @@ public class HTTPHeader {
      */
     public Charset getCharset() {
         Charset cs = null;
-        String s = fields.get("content-type");
+        String s = getKnownField(CONTENT_TYPE);
         if (s == null) return cs;
         for (String t : s.split(";")) {
             if (t.contains("charset=")) {
@@ -128,14 +311,19 @@ public class HTTPHeader {
      * @return true if the header correspond to a chunked response
      */
     public boolean isChunkedTransfer() {
-        return fields.containsKey("transfer-encoding") && fields.get("transfer-encoding").trim().equals("chunked");
+        var field = slotOf(TRANSFER_ENCODING);
+        if (field == -1) {
+            return false;
+        }
+        var slot = field * SLOT_SIZE;
+        return equalsIgnoreCase(raw, slots[slot + 2], slots[slot + 3], "chunked");
     }
 
     public String toString() {
         return response + "\n"
                 + version + " " + code + "\n"
-                + fields.toString();
+                + getFields().toString();
     }
 
 
-}
\ No newline at end of file
+}
@@ -3,15 +3,19 @@ package fr.upem.net.tcp.http;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
-import java.util.HashMap;
+import java.util.Arrays;
 
 public class HTTPReader {
 
 	private final Charset ASCII_CHARSET = Charset.forName("ASCII");
 	private final SocketChannel sc;
 	private final ByteBuffer buff;
+	private byte[] headerBytes = new byte[INITIAL_HEADER_SIZE]; // handed over to the HTTPHeader once read
+	static private final int INITIAL_HEADER_SIZE = 256;
+	static private final int MAX_HEADER_SIZE = 65_536;
 
 	public HTTPReader(SocketChannel sc, ByteBuffer buff) {
 		this.sc = sc;
@@ -57,22 +61,40 @@ public class HTTPReader {
 
 	/**
 	 * @return The HTTPHeader object corresponding to the header read
+	 *         <p>
+	 *         The bytes of the header are copied once from buff into an array
+	 *         handed over to the HTTPHeader, fields are not split into Strings.
+	 *         The next header is read into a new array.
 	 * @throws IOException HTTPException if the connection is closed before a header
 	 *                     could be read if the header is ill-formed
 	 */
 	public HTTPHeader readHeader() throws IOException {
-
-		var responseLine = readLineCRLF();
-		var fields = new HashMap<String, String>();
-		String header;
-		while (!(header = readLineCRLF()).isEmpty()) {
-			var tokens = header.split(": ");
-			if (tokens.length != 2) {
-				throw new HTTPException("invalid header " + header);
+		var length = 0;
+		buff.flip();
+		while (true) {
+			if (!buff.hasRemaining()) {
+				buff.clear();
+				if (sc.read(buff) == -1) {
+					throw new HTTPException();
+				}
+				buff.flip();
+			} else {
+				if (length == headerBytes.length) {
+					HTTPException.ensure(length < MAX_HEADER_SIZE, "Header too long");
+					headerBytes = Arrays.copyOf(headerBytes, Math.min(length * 2, MAX_HEADER_SIZE));
+				}
+				var currentOct = buff.get();
+				headerBytes[length++] = currentOct;
+				if (currentOct == '\n' && length >= 4 && headerBytes[length - 2] == '\r'
+						&& headerBytes[length - 3] == '\n' && headerBytes[length - 4] == '\r') {
+					buff.compact();
+					break;
+				}
 			}
-			fields.compute(tokens[0], (k, v) -> (v == null) ? tokens[1] : v + ";" + tokens[1]);
 		}
-		return HTTPHeader.create(responseLine, fields);
+		var raw = headerBytes;
+		headerBytes = new byte[INITIAL_HEADER_SIZE];
+		return HTTPHeader.parse(raw, length);
 	}
 
 	/**
@@ -106,10 +128,141 @@ public class HTTPReader {
 		return bb;
 	}
 
+	/**
+	 * Reads at most max bytes into dst. The bytes already in buff are consumed first
+	 * and, when buff is empty, the socket is read directly into dst so the content
+	 * is copied only once.
+	 *
+	 * The method assume that buff is in write mode and leaves it in write-mode.
+	 *
+	 * @param dst a ByteBuffer in write-mode
+	 * @param max the maximum number of bytes to read, -1 for no limit
+	 * @return the number of bytes read or -1 if the connection is closed
+	 * @throws IOException
+	 */
+	public int read(ByteBuffer dst, long max) throws IOException {
+		var oldDstLimit = dst.limit();
+		if (max >= 0 && dst.remaining() > max) {
+			dst.limit(dst.position() + (int) max);
+		}
+		try {
+			if (buff.position() == 0) {
+				return sc.read(dst);
+			}
+			buff.flip();
+			var oldLimit = buff.limit();
+			var size = Math.min(buff.remaining(), dst.remaining());
+			buff.limit(buff.position() + size);
+			dst.put(buff);
+			buff.limit(oldLimit);
+			buff.compact();
+			return size;
+		} finally {
+			dst.limit(oldDstLimit);
+		}
+	}
+
+	/**
+	 * Writes count bytes of the connection into fc at position. The bytes already
+	 * in buff are written first, the rest goes directly from the socket to the
+	 * file with FileChannel.transferFrom, without passing through a ByteBuffer
+	 * of the application.
+	 *
+	 * The method assume that buff is in write mode and leaves it in write-mode.
+	 *
+	 * @param count the number of bytes to transfer, -1 to transfer until the
+	 *              connection is closed
+	 * @return the number of bytes written in fc
+	 * @throws IOException HTTPException if the connection is closed before count
+	 *                     bytes could be transferred
+	 */
+	public long transferTo(FileChannel fc, long position, long count) throws IOException {
+		var transferred = 0L;
+		buff.flip();
+		try {
+			var oldLimit = buff.limit();
+			if (count >= 0 && buff.remaining() > count) {
+				buff.limit(buff.position() + (int) count);
+			}
+			while (buff.hasRemaining()) {
+				transferred += fc.write(buff, position + transferred);
+			}
+			buff.limit(oldLimit);
+		} finally {
+			buff.compact();
+		}
+		while (count < 0 || transferred < count) {
+			var max = count < 0 ? Long.MAX_VALUE : count - transferred;
+			var written = fc.transferFrom(sc, position + transferred, max);
+			if (written == 0) { // the socket is blocking, nothing means end of stream
+				if (count < 0) {
+					break;
+				}
+				throw new HTTPException("Connection closed before the end of the transfer");
+			}
+			transferred += written;
+		}
+		return transferred;
+	}
+
+	/**
+	 * Reads everything until the server closes the connection, used for bodies
+	 * without Content-Length nor chunked transfer.
+	 *
+	 * @return a ByteBuffer in write-mode containing all the bytes read
+	 * @throws IOException
+	 */
+	public ByteBuffer readAll() throws IOException {
+		var bb = ByteBuffer.allocate(Math.max(buff.capacity(), buff.position()));
+		while (true) {
+			buff.flip();
+			if (bb.remaining() < buff.remaining()) {
+				var tmp = ByteBuffer.allocate(Math.max(bb.capacity() * 2, bb.position() + buff.remaining()));
+				bb.flip();
+				tmp.put(bb);
+				bb = tmp;
+			}
+			bb.put(buff);
+			buff.clear();
+			if (sc.read(buff) == -1) {
+				return bb;
+			}
+		}
+	}
+
+	/**
+	 * Reads the line giving the size of the next chunk, ignoring chunk extensions.
+	 * For the last chunk, the optional trailer and the final CRLF are consumed too
+	 * so that the next response on a persistent connection starts at the right
+	 * place.
+	 *
+	 * @return the size of the next chunk, 0 for the last chunk
+	 * @throws IOException HTTPException if the size is not a positive hexadecimal
+	 *                     number
+	 */
+	public long readChunkSize() throws IOException {
+		var line = readLineCRLF();
+		var extension = line.indexOf(';');
+		long size;
+		try {
+			size = Long.parseLong((extension == -1 ? line : line.substring(0, extension)).trim(), 16);
+		} catch (NumberFormatException e) {
+			throw new HTTPException("Invalid chunk size : " + line);
+		}
+		HTTPException.ensure(size >= 0, "Invalid chunk size : " + line);
+		if (size == 0) {
+			while (!readLineCRLF().isEmpty()) {
+				// skip the trailer
+			}
+		}
+		return size;
+	}
+
 	/**
 	 * @return a ByteBuffer in write-mode containing a content read in chunks mode
 	 * @throws IOException HTTPException if the connection is closed before the end
-	 *                     of the chunks if chunks are ill-formed
+	 *                     of the chunks if chunks are ill-formed or if the
+	 *                     content does not fit in a ByteBuffer
 	 */
 
 	public ByteBuffer readChunks() throws IOException {
@@ -118,12 +271,14 @@ public class HTTPReader {
 		ByteBuffer bb = ByteBuffer.allocate(fullSize);
 		while (true) {
 
-			String size = readLineCRLF();
-			int nextChunkSize = Integer.parseInt(size, 16);
+			var chunkSize = readChunkSize();
 
-			if (nextChunkSize == 0) {
+			if (chunkSize == 0) {
 				break;
 			}
+			// the chunk and its CRLF must fit in an array, with the chunks before
+			HTTPException.ensure(chunkSize <= Integer.MAX_VALUE - 2 - fullSize, "Chunked content too large");
+			int nextChunkSize = (int) chunkSize;
 			fullSize += nextChunkSize;
 
 			ByteBuffer tmp = ByteBuffer.allocate(fullSize);
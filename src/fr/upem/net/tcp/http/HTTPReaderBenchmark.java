@@ -0,0 +1,100 @@
+package fr.upem.net.tcp.http;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/**
+ * Measures the throughput and the latency of HTTPReader against a
+ * FakeHTTPServer replaying the same response with a given fragmentation.
+ */
+public class HTTPReaderBenchmark {
+
+	private static final Logger logger = Logger.getLogger(HTTPReaderBenchmark.class.getName());
+	private static final int BUFFER_SIZE = 1_024;
+
+	private static String response(int bodySize) {
+		return "HTTP/1.1 200 OK\r\nContent-Type: text/plain; charset=utf-8\r\nContent-Length: " + bodySize
+				+ "\r\n\r\n" + "x".repeat(bodySize);
+	}
+
+	/**
+	 * Reads responses on one connection
+	 *
+	 * @return the latency of each response in nanoseconds
+	 */
+	private static long[] readResponses(int port, int responses) throws IOException {
+		var latencies = new long[responses];
+		try (var sc = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+			var reader = new HTTPReader(sc, ByteBuffer.allocateDirect(BUFFER_SIZE));
+			var body = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			for (int i = 0; i < responses; i++) {
+				var start = System.nanoTime();
+				var header = reader.readHeader();
+				var remaining = (long) header.getContentLength();
+				while (remaining > 0) {
+					body.clear();
+					var read = reader.read(body, remaining);
+					if (read == -1) {
+						throw new HTTPException("Connection closed before the end of the body");
+					}
+					remaining -= read;
+				}
+				latencies[i] = System.nanoTime() - start;
+			}
+		}
+		return latencies;
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+		if (args.length != 4) {
+			usage();
+			return;
+		}
+		var connections = Integer.parseInt(args[0]);
+		var responses = Integer.parseInt(args[1]);
+		var bodySize = Integer.parseInt(args[2]);
+		var fragments = Arrays.stream(args[3].split(",")).mapToInt(Integer::parseInt).toArray();
+
+		var response = response(bodySize);
+		var server = new FakeHTTPServer.Builder().addResponse(response).setFragments(fragments)
+				.setRepeat(responses).setMaxConnections(connections).build();
+		server.serve();
+		var executor = Executors.newFixedThreadPool(connections);
+		try {
+			var tasks = new ArrayList<Callable<long[]>>();
+			for (int i = 0; i < connections; i++) {
+				tasks.add(() -> readResponses(server.getPort(), responses));
+			}
+			var start = System.nanoTime();
+			var results = executor.invokeAll(tasks);
+			var elapsed = System.nanoTime() - start;
+			var all = new long[connections * responses];
+			var i = 0;
+			for (var result : results) {
+				for (var latency : result.get()) {
+					all[i++] = latency;
+				}
+			}
+			Arrays.sort(all);
+			var bytes = (long) response.length() * all.length;
+			logger.info(String.format("%d responses in %d ms, %.1f MB/s, p50 %d us, p99 %d us, max %d us",
+					all.length, elapsed / 1_000_000, bytes * 1_000.0 / elapsed, all[all.length / 2] / 1_000,
+					all[(int) (all.length * 0.99)] / 1_000, all[all.length - 1] / 1_000));
+		} finally {
+			executor.shutdown();
+			server.shutdown();
+		}
+	}
+
+	private static void usage() {
+		System.out.println("Usage : HTTPReaderBenchmark connections responsesPerConnection bodySize fragment1,fragment2,...");
+	}
+}
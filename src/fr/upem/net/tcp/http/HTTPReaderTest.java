@@ -158,4 +158,35 @@ public class HTTPReaderTest {
             server.shutdown();
         }
     }
-}
+
+    /**
+     * Test for readHeader with FakeServer
+     * Field names are case-insensitive and values are trimmed
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testReadHeader() throws IOException {
+        FakeHTTPServer server = new FakeHTTPServer("HTTP/1.1 200 OK\r\nContent-LENGTH:  12 \r\nX-Foo: a\r\nx-foo: b\r\n"
+                + "Content-Type: text/html; charset=utf-8\r\n\r\nBODY", 5);
+        try {
+            server.serve();
+            SocketChannel sc = SocketChannel.open();
+            sc.connect(new InetSocketAddress("localhost", server.getPort()));
+            var buff = ByteBuffer.allocate(12);
+            HTTPReader reader = new HTTPReader(sc, buff);
+            HTTPHeader header = reader.readHeader();
+            assertEquals(200, header.getCode());
+            assertEquals("HTTP/1.1", header.getVersion());
+            assertEquals(12, header.getContentLength());
+            assertEquals("12", header.getField("content-length"));
+            assertEquals("a;b", header.getField("X-FOO"));
+            assertEquals("a;b", header.getFields().get("x-foo"));
+            assertEquals("text/html", header.getContentType());
+            assertEquals(StandardCharsets.UTF_8, header.getCharset());
+            assertFalse(header.isChunkedTransfer());
+            assertNull(header.getField("location"));
+        } finally {
+            server.shutdown();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,488 @@
+package fr.upem.net.tcp.http;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import fr.upem.net.tcp.SocketProfile;
+
+/**
+ * Lightweight HTTP/1.1 server serving the static files of a directory.
+ *
+ * Connections are kept alive and requests may be pipelined, they are answered
+ * in order. Files are sent with FileChannel.transferTo and directories are
+ * listed with a chunked response, or for HTTP/1.0 clients with a response
+ * delimited by the end of the connection.
+ */
+public class HTTPServer {
+
+	static private class Context {
+
+		final private SelectionKey key;
+		final private SocketChannel sc;
+		final private ByteBuffer bbin = ByteBuffer.allocate(BUFFER_SIZE);
+		final private ByteBuffer bbout = ByteBuffer.allocate(BUFFER_SIZE);
+		final private HTTPServer server;
+		private boolean closed = false; // the client closed its side
+		private boolean closeAfterResponse = false;
+
+		// body of the response being sent, after the content of bbout
+		private FileChannel file;
+		private long filePosition;
+		private long fileRemaining;
+		private DirectoryStream<Path> directory;
+		private Iterator<Path> listing;
+		private String listingPrefix;
+		private boolean chunkedListing; // false for HTTP/1.0, the end of the listing is then the end of the connection
+
+		private Context(HTTPServer server, SelectionKey key) {
+			this.key = key;
+			this.sc = (SocketChannel) key.channel();
+			this.server = server;
+		}
+
+		private boolean isResponding() {
+			return bbout.position() != 0 || file != null || listing != null;
+		}
+
+		/**
+		 * Process the requests in bbin, the next request is only handled once the
+		 * response to the previous one is fully sent
+		 *
+		 * The convention is that both buffers are in write-mode before the call to
+		 * process and after the call
+		 */
+		private void processIn() {
+			while (!isResponding() && !closeAfterResponse) {
+				var end = endOfHeader();
+				if (end == -1) {
+					if (!bbin.hasRemaining()) {
+						closeAfterResponse = true;
+						respondError(431, "Request Header Fields Too Large");
+					}
+					return;
+				}
+				bbin.flip();
+				var request = StandardCharsets.ISO_8859_1.decode(bbin.slice().limit(end)).toString();
+				bbin.position(end + 4);
+				bbin.compact();
+				handleRequest(request);
+			}
+		}
+
+		/**
+		 * @return the index of the CRLFCRLF ending the first request in bbin, -1 if
+		 *         it is not fully received
+		 */
+		private int endOfHeader() {
+			for (int i = 0; i + 3 < bbin.position(); i++) {
+				if (bbin.get(i) == '\r' && bbin.get(i + 1) == '\n' && bbin.get(i + 2) == '\r'
+						&& bbin.get(i + 3) == '\n') {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private void handleRequest(String request) {
+			var lines = request.split("\r\n");
+			var tokens = lines[0].split(" ");
+			if (tokens.length != 3 || !HTTPHeader.SUPPORTED_VERSIONS.contains(tokens[2])) {
+				closeAfterResponse = true;
+				respondError(400, "Bad Request");
+				return;
+			}
+			if (tokens[1].length() > MAX_TARGET_LENGTH) {
+				closeAfterResponse = true;
+				respondError(414, "URI Too Long");
+				return;
+			}
+			var method = tokens[0];
+			var http11 = tokens[2].equals("HTTP/1.1");
+			var keepAlive = http11;
+			for (int i = 1; i < lines.length; i++) {
+				var colon = lines[i].indexOf(':');
+				if (colon == -1) {
+					continue;
+				}
+				var name = lines[i].substring(0, colon).trim();
+				var value = lines[i].substring(colon + 1).trim();
+				if (name.equalsIgnoreCase("connection")) {
+					keepAlive = value.equalsIgnoreCase("keep-alive")
+							|| (keepAlive && !value.equalsIgnoreCase("close"));
+				} else if (name.equalsIgnoreCase("content-length") || name.equalsIgnoreCase("transfer-encoding")) {
+					// request bodies are not supported, the stream cannot be resynchronized
+					closeAfterResponse = true;
+					respondError(400, "Bad Request");
+					return;
+				}
+			}
+			closeAfterResponse = !keepAlive;
+			if (!method.equals("GET") && !method.equals("HEAD")) {
+				respondError(405, "Method Not Allowed");
+				return;
+			}
+			var path = server.resolve(tokens[1]);
+			if (path == null || !Files.isReadable(path)) {
+				respondError(404, "Not Found");
+				return;
+			}
+			var head = method.equals("HEAD");
+			try {
+				if (Files.isDirectory(path)) {
+					respondDirectory(tokens[1], path, head, http11);
+				} else {
+					respondFile(path, head);
+				}
+			} catch (IOException e) {
+				logger.log(Level.INFO, "Failed to open " + path, e);
+				closeFile();
+				respondError(500, "Internal Server Error");
+			}
+		}
+
+		/**
+		 * @param lengthField the field giving the length of the body, null for a body
+		 *                    delimited by the end of the connection
+		 */
+		private void putHeader(int code, String reason, String contentType, String lengthField) {
+			var header = "HTTP/1.1 " + code + " " + reason + "\r\n" + "Content-Type: " + contentType + "\r\n"
+					+ (lengthField == null ? "" : lengthField + "\r\n") + "Connection: "
+					+ (closeAfterResponse ? "close" : "keep-alive") + "\r\n" + "\r\n";
+			bbout.put(StandardCharsets.ISO_8859_1.encode(header));
+		}
+
+		/**
+		 * closeAfterResponse must be set before, it selects the Connection field
+		 */
+		private void respondError(int code, String reason) {
+			var body = code + " " + reason + "\n";
+			putHeader(code, reason, "text/plain; charset=utf-8", "Content-Length: " + body.length());
+			bbout.put(StandardCharsets.ISO_8859_1.encode(body));
+		}
+
+		private void respondFile(Path path, boolean head) throws IOException {
+			file = FileChannel.open(path, StandardOpenOption.READ);
+			filePosition = 0;
+			fileRemaining = file.size();
+			putHeader(200, "OK", contentType(path), "Content-Length: " + fileRemaining);
+			if (head || fileRemaining == 0) {
+				closeFile();
+			}
+		}
+
+		/**
+		 * @param chunked whether the client can decode a chunked listing, otherwise
+		 *                the connection is closed after the listing
+		 */
+		private void respondDirectory(String target, Path path, boolean head, boolean chunked) throws IOException {
+			chunkedListing = chunked;
+			if (!chunked) {
+				closeAfterResponse = true;
+			}
+			putHeader(200, "OK", "text/html; charset=utf-8", chunked ? "Transfer-Encoding: chunked" : null);
+			if (head) {
+				return;
+			}
+			directory = Files.newDirectoryStream(path);
+			listing = directory.iterator();
+			listingPrefix = escape(target.endsWith("/") ? target : target + "/");
+			putChunk(UTF8.encode("<html><body><h1>Index of " + listingPrefix + "</h1><ul>\n"));
+		}
+
+		/**
+		 * @param content a ByteBuffer in read-mode, at most MAX_CHUNK_CONTENT bytes,
+		 *                put as is if the listing is not chunked
+		 */
+		private void putChunk(ByteBuffer content) {
+			if (!chunkedListing) {
+				bbout.put(content);
+				return;
+			}
+			bbout.put(StandardCharsets.ISO_8859_1.encode(Integer.toHexString(content.remaining()) + "\r\n"));
+			bbout.put(content);
+			bbout.put(CRLF.duplicate());
+		}
+
+		/**
+		 * Fills bbout with the next chunks of the directory listing
+		 */
+		private void processListing() {
+			while (listing != null) {
+				if (bbout.remaining() < MAX_CHUNK_CONTENT + CHUNK_OVERHEAD) {
+					return;
+				}
+				if (!listing.hasNext()) {
+					putChunk(UTF8.encode("</ul></body></html>\n"));
+					if (chunkedListing) {
+						bbout.put(StandardCharsets.ISO_8859_1.encode("0\r\n\r\n"));
+					}
+					closeListing();
+					return;
+				}
+				var name = escape(listing.next().getFileName().toString());
+				var chunk = UTF8.encode("<li><a href=\"" + listingPrefix + name + "\">" + name + "</a></li>\n");
+				if (chunk.remaining() <= MAX_CHUNK_CONTENT) { // unreasonably long names are not listed
+					putChunk(chunk);
+				}
+			}
+		}
+
+		private void closeListing() {
+			listing = null;
+			try {
+				directory.close();
+			} catch (IOException e) {
+				// ignore exception
+			}
+			directory = null;
+		}
+
+		private void closeFile() {
+			if (file == null) {
+				return;
+			}
+			try {
+				file.close();
+			} catch (IOException e) {
+				// ignore exception
+			}
+			file = null;
+		}
+
+		/**
+		 * Update the interestOps of the key looking only at the boolean closed, the
+		 * response in progress and both ByteBuffers.
+		 *
+		 * The convention is that both buffers are in write-mode before the call to
+		 * updateInterestOps and after the call.
+		 */
+		private void updateInterestOps() {
+			int intrestOps = 0;
+			if (!closed && !closeAfterResponse && bbin.hasRemaining()) {
+				intrestOps |= SelectionKey.OP_READ;
+			}
+			if (isResponding()) {
+				intrestOps |= SelectionKey.OP_WRITE;
+			}
+			if (intrestOps == 0) {
+				silentlyClose();
+			} else {
+				key.interestOps(intrestOps);
+			}
+		}
+
+		private void silentlyClose() {
+			closeFile();
+			if (directory != null) {
+				closeListing();
+			}
+			try {
+				sc.close();
+			} catch (IOException e) {
+				// ignore exception
+			}
+		}
+
+		/**
+		 * Performs the read action on sc
+		 *
+		 * The convention is that both buffers are in write-mode before the call to
+		 * doRead and after the call
+		 *
+		 * @throws IOException
+		 */
+		private void doRead() throws IOException {
+			if (sc.read(bbin) == -1) {
+				closed = true;
+			}
+			processIn();
+			updateInterestOps();
+		}
+
+		/**
+		 * Performs the write action on sc, the header in bbout is sent before the
+		 * body of the file which is transferred without leaving the kernel
+		 *
+		 * The convention is that both buffers are in write-mode before the call to
+		 * doWrite and after the call
+		 *
+		 * @throws IOException
+		 */
+		private void doWrite() throws IOException {
+			processListing();
+			if (bbout.position() != 0) {
+				bbout.flip();
+				sc.write(bbout);
+				bbout.compact();
+			}
+			if (bbout.position() == 0 && file != null) {
+				var written = file.transferTo(filePosition, fileRemaining, sc);
+				filePosition += written;
+				fileRemaining -= written;
+				if (fileRemaining == 0) {
+					closeFile();
+				}
+			}
+			processIn();
+			updateInterestOps();
+		}
+	}
+
+	static private final int BUFFER_SIZE = 8_192;
+	static private final int MAX_TARGET_LENGTH = 1_024;
+	static private final int MAX_CHUNK_CONTENT = 4_096; // a listed name with its markup
+	static private final int CHUNK_OVERHEAD = 16; // size line and CRLF
+	static private final Charset UTF8 = StandardCharsets.UTF_8;
+	static private final ByteBuffer CRLF = ByteBuffer.wrap(new byte[] { '\r', '\n' }).asReadOnlyBuffer();
+	static private final Map<String, String> CONTENT_TYPES = Map.of("html", "text/html; charset=utf-8", "htm",
+			"text/html; charset=utf-8", "txt", "text/plain; charset=utf-8", "css", "text/css", "js",
+			"application/javascript", "json", "application/json", "png", "image/png", "jpg", "image/jpeg", "gif",
+			"image/gif", "svg", "image/svg+xml");
+	static private final Logger logger = Logger.getLogger(HTTPServer.class.getName());
+
+	private final ServerSocketChannel serverSocketChannel;
+	private final Selector selector;
+	private final Path root;
+	private final SocketProfile profile;
+
+	public HTTPServer(int port, Path root) throws IOException {
+		this(port, root, SocketProfile.fromSystemProperty());
+	}
+
+	public HTTPServer(int port, Path root, SocketProfile profile) throws IOException {
+		this.root = root.toAbsolutePath().normalize();
+		if (!Files.isDirectory(this.root)) {
+			throw new IllegalArgumentException(root + " is not a directory");
+		}
+		this.profile = profile;
+		serverSocketChannel = profile.bind(port);
+		selector = Selector.open();
+	}
+
+	public int getPort() throws IOException {
+		return ((InetSocketAddress) serverSocketChannel.getLocalAddress()).getPort();
+	}
+
+	/**
+	 * @return the file corresponding to the target of the request, null if it is
+	 *         outside of the root directory
+	 */
+	private Path resolve(String target) {
+		var query = target.indexOf('?');
+		if (query != -1) {
+			target = target.substring(0, query);
+		}
+		if (!target.startsWith("/")) {
+			return null;
+		}
+		try {
+			var decoded = URLDecoder.decode(target.replace("+", "%2B"), UTF8);
+			var path = root.resolve(decoded.substring(1)).normalize();
+			return path.startsWith(root) ? path : null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private static String escape(String s) {
+		return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+
+	private static String contentType(Path path) {
+		var name = path.getFileName().toString();
+		var dot = name.lastIndexOf('.');
+		if (dot == -1) {
+			return "application/octet-stream";
+		}
+		return CONTENT_TYPES.getOrDefault(name.substring(dot + 1).toLowerCase(), "application/octet-stream");
+	}
+
+	public void launch() throws IOException {
+		serverSocketChannel.configureBlocking(false);
+		serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+		logger.info("Serving " + root + " on port " + getPort());
+		while (!Thread.interrupted()) {
+			try {
+				selector.select(this::treatKey);
+			} catch (UncheckedIOException tunneled) {
+				throw tunneled.getCause();
+			}
+		}
+	}
+
+	private void treatKey(SelectionKey key) {
+		try {
+			if (key.isValid() && key.isAcceptable()) {
+				doAccept(key);
+			}
+		} catch (IOException ioe) {
+			// lambda call in select requires to tunnel IOException
+			throw new UncheckedIOException(ioe);
+		}
+		try {
+			if (key.isValid() && key.isWritable()) {
+				((Context) key.attachment()).doWrite();
+			}
+			if (key.isValid() && key.isReadable()) {
+				((Context) key.attachment()).doRead();
+			}
+		} catch (IOException e) {
+			logger.log(Level.INFO, "Connection closed with client due to IOException", e);
+			((Context) key.attachment()).silentlyClose();
+		} catch (DirectoryIteratorException e) {
+			// the listing of a directory failed while it was being sent
+			logger.log(Level.INFO, "Connection closed with client due to IOException", e.getCause());
+			((Context) key.attachment()).silentlyClose();
+		}
+	}
+
+	private void doAccept(SelectionKey key) throws IOException {
+		var ssc = (ServerSocketChannel) key.channel();
+		var sc = ssc.accept();
+
+		if (sc == null) {
+			return;
+		}
+		try {
+			profile.configure(sc);
+			sc.configureBlocking(false);
+			var scKey = sc.register(selector, SelectionKey.OP_READ);
+			scKey.attach(new Context(this, scKey));
+		} catch (IOException e) {
+			// the client may have reset the connection already
+			logger.log(Level.INFO, "Connection refused due to IOException", e);
+			sc.close();
+		}
+	}
+
+	public static void main(String[] args) throws NumberFormatException, IOException {
+		if (args.length != 2) {
+			usage();
+			return;
+		}
+		new HTTPServer(Integer.parseInt(args[0]), Path.of(args[1])).launch();
+	}
+
+	private static void usage() {
+		System.out.println("Usage : HTTPServer port rootDirectory");
+	}
+}
@@ -0,0 +1,139 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Guesses the size of the buffer of a connection from the sizes of its reads,
+ * in the manner of Netty's AdaptiveRecvByteBufAllocator.
+ *
+ * Sizes are powers of two between the minimum and the maximum. The size grows
+ * by two steps as soon as a read fills all the space that was offered, and
+ * shrinks by one step after two consecutive reads that would have fit in the
+ * smaller size. Bulk senders quickly get large buffers while quiet connections
+ * go back to the minimum, at once when they stop reading for a while.
+ *
+ * The direct buffers are taken from BufferPools when the sizer has some, so
+ * that resizing does not allocate direct memory each time.
+ */
+class AdaptiveBufferSizer {
+
+	private static final int INCREMENT = 2;
+	private static final int DECREMENT = 1;
+
+	private final int minShift;
+	private final int maxShift;
+	private int shift;
+	private boolean decreaseNow = false;
+	private final BufferPools pools; // null to allocate the buffers
+
+	/**
+	 * @param minimum the minimum size, rounded up to a power of two
+	 * @param initial the initial size, rounded up to a power of two
+	 * @param maximum the maximum size, rounded up to a power of two
+	 */
+	AdaptiveBufferSizer(int minimum, int initial, int maximum) {
+		this(minimum, initial, maximum, null);
+	}
+
+	/**
+	 * @param pools the pools of the direct buffers, null to allocate them
+	 */
+	AdaptiveBufferSizer(int minimum, int initial, int maximum, BufferPools pools) {
+		if (minimum <= 0 || initial < minimum || maximum < initial) {
+			throw new IllegalArgumentException("expected 0 < minimum <= initial <= maximum");
+		}
+		minShift = shiftOf(minimum);
+		maxShift = shiftOf(maximum);
+		shift = shiftOf(initial);
+		this.pools = pools;
+	}
+
+	static int shiftOf(int size) {
+		return 32 - Integer.numberOfLeadingZeros(size - 1);
+	}
+
+	/**
+	 * @return the size the buffer should have
+	 */
+	int size() {
+		return 1 << shift;
+	}
+
+	/**
+	 * Records the result of a read
+	 *
+	 * @param offered the space that was available in the buffer
+	 * @param read    the number of bytes actually read
+	 */
+	void record(int offered, int read) {
+		if (read >= offered) {
+			shift = Math.min(shift + INCREMENT, maxShift);
+			decreaseNow = false;
+			return;
+		}
+		if (shift > minShift && read <= 1 << (shift - DECREMENT)) {
+			if (decreaseNow) {
+				shift = Math.max(shift - DECREMENT, minShift);
+				decreaseNow = false;
+			} else {
+				decreaseNow = true;
+			}
+			return;
+		}
+		decreaseNow = false;
+	}
+
+	/**
+	 * @return an empty buffer of the current size, direct and taken from the pools
+	 *         if the sizer has some, on the heap otherwise
+	 */
+	ByteBuffer allocate() {
+		return pools != null ? pools.acquire(size()) : ByteBuffer.allocate(size());
+	}
+
+	/**
+	 * @return an empty direct buffer of the current size, taken from the pools if
+	 *         the sizer has some
+	 */
+	ByteBuffer allocateDirect() {
+		return pools != null ? pools.acquire(size()) : ByteBuffer.allocateDirect(size());
+	}
+
+	/**
+	 * Gives back a buffer no longer used to the pools, if the sizer has some
+	 */
+	void release(ByteBuffer bb) {
+		if (pools != null) {
+			pools.release(bb);
+		}
+	}
+
+	/**
+	 * Records that the connection has stopped reading, the size goes back to the
+	 * minimum
+	 */
+	void recordQuiet() {
+		shift = minShift;
+		decreaseNow = false;
+	}
+
+	/**
+	 * Moves the content of bb to a buffer of the current size, if it fits. bb is
+	 * then released.
+	 *
+	 * @param bb a ByteBuffer in write-mode
+	 * @return a ByteBuffer in write-mode with the same content, bb itself if it
+	 *         already has the right size or if its content is too large
+	 */
+	ByteBuffer resize(ByteBuffer bb) {
+		var size = size();
+		if (bb.capacity() == size || bb.position() > size) {
+			return bb;
+		}
+		var resized = bb.isDirect() ? allocateDirect() : ByteBuffer.allocate(size);
+		bb.flip();
+		resized.put(bb);
+		release(bb);
+		return resized;
+	}
+}
@@ -0,0 +1,124 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.PrintStream;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records the events of the select loop in a ring buffer, a background thread
+ * formats and prints them.
+ *
+ * The select loop only stores a few primitive values per event: no string is
+ * built and no lock is taken there. The ring has a single producer, the select
+ * loop, and a single consumer, the printing thread. When the printer falls
+ * behind, the new events are dropped and counted instead of blocking the loop.
+ */
+class AsyncSelectorTracer implements SelectorTracer {
+
+	private static final int BEFORE_SELECT = 0;
+	private static final int SELECTED_KEY = 1;
+	private static final int AFTER_SELECT = 2;
+	private static final long IDLE_PARK_NANOS = 1_000_000;
+
+	private final PrintStream out;
+	private final int mask;
+	private final int[] types;
+	private final long[] times;
+	private final int[] values; // number of keys or readyOps
+	private final SelectableChannel[] channels;
+	private final AtomicLong published = new AtomicLong(); // written by the select loop
+	private final AtomicLong consumed = new AtomicLong(); // written by the printer
+	private final long start = System.nanoTime();
+	private long dropped = 0; // only accessed by the select loop
+	private final AtomicLong droppedReported = new AtomicLong();
+
+	/**
+	 * @param capacity the number of events of the ring, rounded up to a power of
+	 *                 two
+	 */
+	AsyncSelectorTracer(PrintStream out, int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		this.out = Objects.requireNonNull(out);
+		var size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+		mask = size - 1;
+		types = new int[size];
+		times = new long[size];
+		values = new int[size];
+		channels = new SelectableChannel[size];
+		var printer = new Thread(this::print, "selector-tracer");
+		printer.setDaemon(true);
+		printer.start();
+	}
+
+	private void record(int type, int value, SelectableChannel channel) {
+		var tail = published.get();
+		if (tail - consumed.get() > mask) {
+			dropped++;
+			droppedReported.lazySet(dropped);
+			return;
+		}
+		var slot = (int) tail & mask;
+		types[slot] = type;
+		times[slot] = System.nanoTime();
+		values[slot] = value;
+		channels[slot] = channel;
+		published.lazySet(tail + 1); // publishes the slot to the printer
+	}
+
+	@Override
+	public void beforeSelect(Selector selector) {
+		record(BEFORE_SELECT, selector.keys().size(), null);
+	}
+
+	@Override
+	public void selectedKey(SelectionKey key) {
+		record(SELECTED_KEY, key.isValid() ? key.readyOps() : -1, key.channel());
+	}
+
+	@Override
+	public void afterSelect(Selector selector, int selected) {
+		record(AFTER_SELECT, selected, null);
+	}
+
+	private void print() {
+		var reported = 0L;
+		while (true) {
+			var head = consumed.get();
+			var tail = published.get();
+			if (head == tail) {
+				var drops = droppedReported.get();
+				if (drops != reported) {
+					out.println("... " + (drops - reported) + " events dropped");
+					reported = drops;
+				}
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+				continue;
+			}
+			for (; head < tail; head++) {
+				var slot = (int) head & mask;
+				var micros = (times[slot] - start) / 1_000;
+				var channel = channels[slot];
+				channels[slot] = null;
+				switch (types[slot]) {
+				case BEFORE_SELECT:
+					out.println(micros + "us Starting select on " + values[slot] + " keys");
+					break;
+				case SELECTED_KEY:
+					out.println(micros + "us \t" + ConsoleSelectorTracer.channelToString(channel) + " can perform : "
+							+ (values[slot] < 0 ? "CANCELLED" : ConsoleSelectorTracer.readyOpsToString(values[slot])));
+					break;
+				default:
+					out.println(micros + "us Select finished, " + values[slot] + " keys treated");
+					break;
+				}
+				consumed.lazySet(head + 1);
+			}
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Objects;
+
+/**
+ * Ring of the last values published to a group of subscribers.
+ *
+ * A value is stored once, whatever the number of subscribers, each subscriber
+ * only holds a Cursor on the sequence of the next value it has to read. The
+ * ring keeps the last capacity values: a subscriber whose cursor falls behind
+ * has lost values, it is a slow consumer. The array of the ring starts small
+ * and doubles until it reaches capacity, so that a quiet ring stays small.
+ *
+ * A subscriber that has read every value can wait for the next one with
+ * await, it is notified once when a value is published, unless it closes its
+ * cursor before.
+ *
+ * The ring is meant to be used by the thread of a Reactor only.
+ */
+class BroadcastRing<T> {
+
+	/**
+	 * Position of a subscriber in the ring
+	 */
+	final class Cursor {
+		private long next; // sequence of the next value to read
+		private boolean waiting = false;
+		private final Runnable listener;
+
+		private Cursor(Runnable listener) {
+			this.next = published;
+			this.listener = listener;
+		}
+
+		/**
+		 * @return true if values have been overwritten before being read
+		 */
+		boolean isLost() {
+			return published - next > values.length;
+		}
+
+		boolean hasNext() {
+			return next != published;
+		}
+
+		/**
+		 * @return the next value, the cursor moves past it
+		 */
+		@SuppressWarnings("unchecked")
+		T next() {
+			if (!hasNext() || isLost()) {
+				throw new IllegalStateException("no value to read");
+			}
+			return (T) values[(int) (next++ & mask)];
+		}
+
+		/**
+		 * Calls the listener of the cursor at the next publish, once
+		 */
+		void await() {
+			if (!waiting) {
+				waiting = true;
+				waitingCursors.add(this);
+			}
+		}
+
+		/**
+		 * Stops waiting, the listener is no longer called. The cursor must be
+		 * closed when its subscriber is gone, so that the ring does not keep it.
+		 */
+		void close() {
+			if (waiting) {
+				waiting = false;
+				waitingCursors.remove(this);
+			}
+		}
+	}
+
+	static private final int INITIAL_CAPACITY = 64;
+
+	private Object[] values;
+	private int mask;
+	private final int capacity;
+	private long published = 0; // sequence of the next value published
+	private LinkedHashSet<Cursor> waitingCursors = new LinkedHashSet<>(); // a set so that close is cheap
+	private LinkedHashSet<Cursor> notifiedCursors = new LinkedHashSet<>(); // reused to notify while cursors wait again
+
+	/**
+	 * @param capacity the number of values kept, rounded up to a power of two
+	 */
+	BroadcastRing(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+		values = new Object[Math.min(this.capacity, INITIAL_CAPACITY)];
+		mask = values.length - 1;
+	}
+
+	/**
+	 * @param listener called by the ring when the cursor waits and a value is
+	 *                 published
+	 * @return a cursor on the values published from now
+	 */
+	Cursor subscribe(Runnable listener) {
+		return new Cursor(Objects.requireNonNull(listener));
+	}
+
+	/**
+	 * Publishes value to the subscribers and notifies the waiting ones
+	 */
+	void publish(T value) {
+		if (published == values.length && values.length < capacity) {
+			// the ring has never wrapped, the values keep their index
+			values = Arrays.copyOf(values, values.length * 2);
+			mask = values.length - 1;
+		}
+		values[(int) (published++ & mask)] = Objects.requireNonNull(value);
+		if (waitingCursors.isEmpty()) {
+			return;
+		}
+		var notified = waitingCursors;
+		waitingCursors = notifiedCursors;
+		notifiedCursors = notified;
+		for (var cursor : notified) {
+			cursor.waiting = false;
+			cursor.listener.run();
+		}
+		notified.clear();
+	}
+}
@@ -0,0 +1,54 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Free list of direct buffers of the same size.
+ *
+ * A direct buffer is costly to allocate and its memory is only freed by the
+ * garbage collector, the buffers of the closed connections are kept to be
+ * given to the next ones instead. A pool belongs to a Reactor and is only used
+ * by its thread.
+ */
+class BufferPool {
+
+	private final int bufferSize;
+	private final int maxFree;
+	private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+
+	/**
+	 * @param maxFree the number of free buffers kept, the others are left to the
+	 *                garbage collector
+	 */
+	BufferPool(int bufferSize, int maxFree) {
+		if (bufferSize <= 0 || maxFree < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.bufferSize = bufferSize;
+		this.maxFree = maxFree;
+	}
+
+	/**
+	 * @return a buffer in write-mode, empty
+	 */
+	ByteBuffer acquire() {
+		var buffer = free.poll();
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Gives back a buffer of the pool, it must not be used afterwards
+	 */
+	void release(ByteBuffer buffer) {
+		if (buffer.capacity() != bufferSize || !buffer.isDirect()) {
+			throw new IllegalArgumentException("not a buffer of the pool");
+		}
+		if (free.size() < maxFree) {
+			free.push(buffer.clear());
+		}
+	}
+}
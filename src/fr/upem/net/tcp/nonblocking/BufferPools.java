@@ -0,0 +1,66 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Free lists of direct buffers whose sizes are the powers of two between a
+ * minimum and a maximum, one BufferPool for each size.
+ *
+ * The buffers resized by an AdaptiveBufferSizer are taken from the pools and
+ * given back to them, so that a connection growing and shrinking its buffers
+ * does not allocate direct memory each time. The pools belong to a Reactor and
+ * are only used by its thread.
+ */
+class BufferPools {
+
+	private final int minShift;
+	private final BufferPool[] pools; // pools[i] holds buffers of 1 << (minShift + i) bytes
+
+	/**
+	 * @param minimum the smallest size pooled, rounded up to a power of two
+	 * @param maximum the largest size pooled, rounded up to a power of two
+	 * @param maxFree the number of free buffers kept for each size
+	 */
+	BufferPools(int minimum, int maximum, int maxFree) {
+		if (minimum <= 0 || maximum < minimum) {
+			throw new IllegalArgumentException("expected 0 < minimum <= maximum");
+		}
+		minShift = AdaptiveBufferSizer.shiftOf(minimum);
+		pools = new BufferPool[AdaptiveBufferSizer.shiftOf(maximum) - minShift + 1];
+		for (int i = 0; i < pools.length; i++) {
+			pools[i] = new BufferPool(1 << (minShift + i), maxFree);
+		}
+	}
+
+	/**
+	 * @return the pool of the buffers of size bytes, null if that size is not
+	 *         pooled
+	 */
+	private BufferPool poolOf(int size) {
+		if (Integer.bitCount(size) != 1) {
+			return null;
+		}
+		var index = Integer.numberOfTrailingZeros(size) - minShift;
+		return index < 0 || index >= pools.length ? null : pools[index];
+	}
+
+	/**
+	 * @return a direct buffer of size bytes in write-mode, empty, taken from the
+	 *         pools if that size is pooled
+	 */
+	ByteBuffer acquire(int size) {
+		var pool = poolOf(size);
+		return pool == null ? ByteBuffer.allocateDirect(size) : pool.acquire();
+	}
+
+	/**
+	 * Gives back a buffer, it must not be used afterwards. A buffer of a size that
+	 * is not pooled, or on the heap, is left to the garbage collector.
+	 */
+	void release(ByteBuffer buffer) {
+		var pool = poolOf(buffer.capacity());
+		if (pool != null && buffer.isDirect()) {
+			pool.release(buffer);
+		}
+	}
+}
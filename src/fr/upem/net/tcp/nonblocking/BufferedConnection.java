@@ -0,0 +1,167 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+
+/**
+ * A connection reading into bbin and writing from bbout, the protocol is
+ * implemented by processIn and processOut.
+ *
+ * The convention is that both buffers are in write-mode before and after each
+ * call of the methods of this class and of its subclasses.
+ */
+public abstract class BufferedConnection extends Connection {
+
+	protected ByteBuffer bbin;
+	protected ByteBuffer bbout;
+	private final AdaptiveBufferSizer sizer; // null if the buffers have a fixed size
+	private boolean inputClosed = false;
+
+	/**
+	 * Creates a connection with buffers of fixed sizes
+	 */
+	protected BufferedConnection(SelectionKey key, int inputSize, int outputSize) {
+		super(key);
+		bbin = ByteBuffer.allocate(inputSize);
+		bbout = ByteBuffer.allocate(outputSize);
+		sizer = null;
+	}
+
+	/**
+	 * Creates a connection using the given buffers, in write-mode
+	 */
+	protected BufferedConnection(SelectionKey key, ByteBuffer bbin, ByteBuffer bbout) {
+		super(key);
+		this.bbin = bbin;
+		this.bbout = bbout;
+		sizer = null;
+	}
+
+	/**
+	 * Creates a connection whose buffers follow the size guessed by sizer, they
+	 * are taken from the pools of sizer if it has some
+	 */
+	protected BufferedConnection(SelectionKey key, AdaptiveBufferSizer sizer) {
+		super(key);
+		bbin = sizer.allocate();
+		bbout = sizer.allocate();
+		this.sizer = sizer;
+	}
+
+	/**
+	 * Process the content of bbin, called after each read and each time bbout has
+	 * been flushed
+	 */
+	protected abstract void processIn();
+
+	/**
+	 * Fills bbout with the pending output of the connection, if any
+	 */
+	protected void processOut() {
+		// nothing pending by default
+	}
+
+	/**
+	 * Stops reading on sc, the connection is closed once bbout is flushed
+	 */
+	protected void closeInput() {
+		inputClosed = true;
+	}
+
+	protected boolean isInputClosed() {
+		return inputClosed;
+	}
+
+	/**
+	 * Performs up to spins reads on sc, processing bbin after each one. It stops
+	 * as soon as a read does not fill the offered space, sc is then drained.
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	protected void doRead(int spins) throws IOException {
+		for (int i = 0; i < spins && !inputClosed && !isClosed() && bbin.hasRemaining(); i++) {
+			var offered = bbin.remaining();
+			var read = sc.read(bbin);
+			if (read == -1) {
+				inputClosed = true;
+			} else if (sizer != null) {
+				sizer.record(offered, read);
+			}
+			processIn();
+			if (read < offered) {
+				break;
+			}
+		}
+		resize();
+	}
+
+	/**
+	 * Performs up to spins writes on sc, processing bbin again once bbout has
+	 * room. It stops as soon as sc accepts no more bytes.
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	protected void doWrite(int spins) throws IOException {
+		for (int i = 0; i < spins && !isClosed(); i++) {
+			processOut();
+			if (bbout.position() == 0) {
+				break;
+			}
+			bbout.flip();
+			var written = sc.write(bbout);
+			bbout.compact();
+			if (written == 0) {
+				break;
+			}
+			processIn();
+		}
+		resize();
+	}
+
+	private void resize() {
+		if (sizer != null && !isClosed()) { // the buffers of a closed connection are released
+			bbin = sizer.resize(bbin);
+			bbout = sizer.resize(bbout);
+		}
+	}
+
+	/**
+	 * Shrinks the buffers to the minimum size of the sizer, if their content fits
+	 */
+	@Override
+	protected void onQuiet() {
+		if (sizer != null) {
+			sizer.recordQuiet();
+			resize();
+			updateInterestOps();
+		}
+	}
+
+	/**
+	 * Gives the buffers back to the pools of the sizer, a subclass overriding
+	 * onClose must call it
+	 */
+	@Override
+	protected void onClose() {
+		if (sizer != null) {
+			sizer.release(bbin);
+			sizer.release(bbout);
+		}
+	}
+
+	@Override
+	protected int interestOps() {
+		processOut();
+		int interestOps = 0;
+		if (!inputClosed && bbin.hasRemaining()) {
+			interestOps |= SelectionKey.OP_READ;
+		}
+		if (bbout.position() != 0) {
+			interestOps |= SelectionKey.OP_WRITE;
+		}
+		return interestOps;
+	}
+}
@@ -0,0 +1,127 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Measures the delivery rate of a federation of ServerChaton.
+ *
+ * The servers run in this JVM and are linked in a full mesh, each client sends
+ * messages to the default room and counts the frames it receives until it got
+ * the messages of every client. The rate is the number of frames delivered to
+ * the clients per second.
+ */
+public class ChatonFederationBenchmark {
+
+	private static final Logger logger = Logger.getLogger(ChatonFederationBenchmark.class.getName());
+	private static final int PEER_PORT_OFFSET = 100;
+
+	private static void startServer(ServerChaton server) {
+		var thread = new Thread(() -> {
+			try {
+				server.launch();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Sends messages frames on a connection while reading the frames of all the
+	 * clients
+	 *
+	 * @return the number of frames received
+	 */
+	private static long chat(InetSocketAddress server, String login, int messages, long expected)
+			throws IOException, InterruptedException {
+		try (var socket = new Socket(server.getHostString(), server.getPort())) {
+			var writer = new Thread(() -> {
+				try {
+					var out = new BufferedOutputStream(socket.getOutputStream());
+					for (int i = 0; i < messages; i++) {
+						var frame = new Message.Builder().setLogin(login).setMessage("message " + i).build().encode();
+						out.write(frame.array(), 0, frame.limit());
+					}
+					out.flush();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+			writer.start();
+			var in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			var received = 0L;
+			while (received < expected) {
+				in.skipNBytes(in.readInt());
+				in.skipNBytes(in.readInt());
+				received++;
+			}
+			writer.join();
+			return received;
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length != 4) {
+			usage();
+			return;
+		}
+		var port = Integer.parseInt(args[0]);
+		var nodes = Integer.parseInt(args[1]);
+		var clientsPerNode = Integer.parseInt(args[2]);
+		var messages = Integer.parseInt(args[3]);
+
+		for (int i = 0; i < nodes; i++) {
+			var peers = new ArrayList<InetSocketAddress>();
+			for (int j = 0; j < i; j++) {
+				peers.add(new InetSocketAddress("localhost", port + PEER_PORT_OFFSET + j));
+			}
+			startServer(new ServerChaton(port + i, port + PEER_PORT_OFFSET + i, peers));
+		}
+		Thread.sleep(500); // lets the peer links connect
+
+		var expected = (long) nodes * clientsPerNode * messages;
+		var total = new AtomicLong();
+		var clients = new ArrayList<Thread>();
+		var start = System.nanoTime();
+		for (int i = 0; i < nodes * clientsPerNode; i++) {
+			var server = new InetSocketAddress("localhost", port + i % nodes);
+			var login = "client" + i;
+			var client = new Thread(() -> {
+				try {
+					total.addAndGet(chat(server, login, messages, expected));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			clients.add(client);
+			client.start();
+		}
+		join(clients);
+		var elapsed = System.nanoTime() - start;
+		logger.info(String.format("%d nodes, %d clients : %d frames delivered in %d ms, %.0f deliveries/s", nodes,
+				nodes * clientsPerNode, total.get(), elapsed / 1_000_000, total.get() * 1e9 / elapsed));
+	}
+
+	private static void join(List<Thread> threads) throws InterruptedException {
+		for (var thread : threads) {
+			thread.join();
+		}
+	}
+
+	private static void usage() {
+		System.out.println("Usage : ChatonFederationBenchmark port nodes clientsPerNode messagesPerClient");
+	}
+}
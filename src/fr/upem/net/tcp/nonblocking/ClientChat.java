@@ -1,39 +1,84 @@
 package fr.upem.net.tcp.nonblocking;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channel;
+import java.nio.CharBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
-import java.util.LinkedList;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.ArrayDeque;
+import java.util.HashSet;
 import java.util.Objects;
 import java.util.Queue;
 import java.util.Scanner;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
-import fr.upem.net.tcp.nonblocking.Reader.ProcessStatus;
-
+import fr.upem.net.tcp.SocketProfile;
+
+/**
+ * Chat client, the messages are sent from the console or with sendMessage.
+ * The messages received are given to a listener and to the subscriber of
+ * messages(), every complete frame is decoded after each read.
+ *
+ * The messages waiting to be sent are kept in a bounded queue, sendMessage
+ * blocks while it is full. The thread of the select loop drains the queue,
+ * encoding the messages directly in bbout, as long as bbout has room.
+ *
+ * When the connection is lost, the client connects again after an exponential
+ * backoff. The messages queued in the meantime wait in the queue, they are
+ * sent in a batch once the rooms have been joined again.
+ */
 public class ClientChat {
 
     static private class Context {
 
         final private SelectionKey key;
         final private SocketChannel sc;
+        final private ClientChat client;
         final private ByteBuffer bbin = ByteBuffer.allocate(BUFFER_SIZE);
-        final private ByteBuffer bbout = ByteBuffer.allocate(BUFFER_SIZE);
-        final private Queue<ByteBuffer> queue = new LinkedList<>(); // buffers read-mode
+        final private ByteBuffer bbout = ByteBuffer.allocate(BUFFER_SIZE); // starts with a whole frame, of which headSent bytes are written
+        private ByteBuffer leftover; // frames of the previous connection not entirely written, in read-mode, null if none
         final private MessageReader messageReader = new MessageReader();
-        private boolean closed = false;
+        final private CharsetEncoder encoder = UTF8.newEncoder();
+        final private CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE); // reused to encode each message
+        private int headSent = 0;
         private static final Charset UTF8 = Charset.forName("utf8"); 
 
-        private Context(SelectionKey key){
+        /**
+         * @param previous the context of the previous connection, its frames not
+         *                 entirely written are sent again after the joins, null
+         *                 for the first one
+         */
+        private Context(ClientChat client, SelectionKey key, Context previous){
+            this.client = client;
             this.key = key;
             this.sc = (SocketChannel) key.channel();
+            if (previous != null) {
+                // a connection may be lost before the frames of the previous one are all in bbout
+                previous.bbout.flip();
+                var previousLeftover = previous.leftover == null ? 0 : previous.leftover.remaining();
+                if (previous.bbout.hasRemaining() || previousLeftover != 0) {
+                    leftover = ByteBuffer.allocate(previous.bbout.remaining() + previousLeftover).put(previous.bbout);
+                    if (previous.leftover != null) {
+                        leftover.put(previous.leftover);
+                    }
+                    leftover.flip();
+                }
+            }
         }
 
         /**
@@ -42,64 +87,95 @@ public class ClientChat {
          * The convention is that bbin is in write-mode before the call
          * to process and after the call
          *
+         * @throws ProtocolException if a frame is invalid, the connection is then
+         *                           lost as if the server had closed it
          */
-        private void processIn() {
-        	switch(messageReader.process(bbin)) {
-        		case DONE:
-        			
-        			var login = messageReader.get().getLogin();
-        			var msg =  messageReader.get().getMessage();
-        			System.out.println(login +": "+msg);
-        			messageReader.reset();
-        			updateInterestOps();
-        			/*var bb = ByteBuffer.allocate(1_024);
-        			bb.putInt(login.length()).put(UTF8.encode(login));
-        			bb.putInt(msg.length()).put(UTF8.encode(msg));
-        			messageReader.reset();
-        			queueMessage(bb);*/
-        			break;
-        		case REFILL:
-        			break;
-        		case ERROR:
-        			logger.warning("error in processIn");
-        			throw new IllegalStateException();
-        	}
+        private void processIn() throws ProtocolException {
+            while (client.canDeliver()) {
+                switch (messageReader.process(bbin)) {
+                    case DONE:
+                        var msg = messageReader.get();
+                        messageReader.reset();
+                        client.deliver(msg);
+                        break;
+                    case REFILL:
+                        return;
+                    case ERROR:
+                        throw new ProtocolException("invalid frame from the server");
+                }
+            }
         }
 
         /**
-         * Add a message to the message queue, tries to fill bbOut and updateInterestOps
-         *	
-         * @param bb in write mode
+         * Fill bbout with the joins of a new connection, the frames left by the
+         * previous one, then with the messages of the queue of the client, each
+         * one is encoded directly in bbout. It stops at the first message that
+         * does not fit in bbout, it is sent once bbout is flushed.
+         *
          */
-        private void queueMessage(ByteBuffer bb) {
-        	bb.flip();
-            queue.add(bb);
-            processOut();
-            bb.compact();
-            updateInterestOps();
-            
+        private void processOut() {
+            for (var join = client.pendingJoins.peek(); join != null; join = client.pendingJoins.peek()) {
+                if (!encode(join)) {
+                    return;
+                }
+                client.pendingJoins.poll();
+            }
+            if (leftover != null) {
+                for (var size = frameSize(leftover, leftover.position()); size != -1;
+                        size = frameSize(leftover, leftover.position())) {
+                    if (size > bbout.remaining()) {
+                        return;
+                    }
+                    bbout.put(leftover.slice().limit(size));
+                    leftover.position(leftover.position() + size);
+                }
+                leftover = null;
+            }
+            for (var msg = client.commandQueue.peek(); msg != null; msg = client.commandQueue.peek()) {
+                if (!encode(msg)) {
+                    if (bbout.position() != 0) {
+                        return;
+                    }
+                    logger.warning("message too long, ignored");
+                }
+                client.commandQueue.poll();
+                client.trackRooms(msg);
+            }
         }
 
         /**
-         * Try to fill bbout from the message queue
+         * Puts the frame of msg in bbout : the size of the login in bytes, the
+         * login, the size of the message in bytes and the message, both in UTF8
          *
+         * @return false if the frame does not fit in bbout, which is unchanged
          */
-        private void processOut() {
-            while (!queue.isEmpty()){
-                var bb = queue.peek();
-                if (bb.remaining()<=bbout.remaining()){
-                    queue.remove();
-                    bbout.put(bb);
-                }else {
-                	break;
-                }
+        private boolean encode(String msg) {
+            var start = bbout.position();
+            if (msg.length() > chars.capacity()
+                    || bbout.remaining() < Integer.BYTES * 2 + client.loginBytes.length) {
+                return false;
+            }
+            bbout.putInt(client.loginBytes.length).put(client.loginBytes);
+            var sizePosition = bbout.position();
+            bbout.position(sizePosition + Integer.BYTES);
+            chars.clear();
+            chars.put(msg).flip();
+            encoder.reset();
+            if (encoder.encode(chars, bbout, true) == CoderResult.OVERFLOW
+                    || encoder.flush(bbout) == CoderResult.OVERFLOW) {
+                bbout.position(start);
+                return false;
             }
+            bbout.putInt(sizePosition, bbout.position() - sizePosition - Integer.BYTES);
+            return true;
         }
 
         /**
          * Update the interestOps of the key looking
-         * only at values of the boolean closed and
-         * of both ByteBuffers.
+         * only at values of the boolean closed, of both ByteBuffers
+         * and of the demand of the subscriber of the messages.
+         * Without demand, the key waits for no operation until
+         * the subscriber requests more messages.
          *
          * The convention is that both buffers are in write-mode before the call
          * to updateInterestOps and after the call.
@@ -108,41 +184,33 @@ public class ClientChat {
          */
 
         private void updateInterestOps() {
+            if (!key.isValid() || sc.isConnectionPending()) {
+                return; // doConnect updates the interestOps once connected
+            }
             var interesOps=0;
-            if (!closed && bbin.hasRemaining()){
+            if (bbin.hasRemaining() && client.canDeliver()){
                 interesOps=interesOps|SelectionKey.OP_READ;
             }
             if (bbout.position()!=0){
                 interesOps|=SelectionKey.OP_WRITE;
             }
-            if (interesOps==0){
-                silentlyClose();
-                return;
-            }
             key.interestOps(interesOps);
         }
 
-        private void silentlyClose() {
-            try {
-                sc.close();
-            } catch (IOException e) {
-                // ignore exception
-            }
-        }
-
         /**
          * Performs the read action on sc
          *
          * The convention is that both buffers are in write-mode before the call
          * to doRead and after the call
          *
-         * @throws IOException
+         * @throws IOException if the server has closed the connection
          */
         private void doRead() throws IOException {
-            if (sc.read(bbin)==-1) {
-                closed=true;
-            }
+            var read = sc.read(bbin);
             processIn();
+            if (read == -1) {
+                throw new EOFException("connection closed by the server");
+            }
             updateInterestOps();
         }
 
@@ -157,36 +225,120 @@ public class ClientChat {
 
         private void doWrite() throws IOException {
             bbout.flip();
-            sc.write(bbout);
+            bbout.position(headSent);
+            try {
+                headSent += sc.write(bbout);
+            } catch (IOException e) {
+                bbout.position(bbout.limit()).limit(bbout.capacity()); // back in write-mode for the next connection
+                throw e;
+            }
+            // only the frames written entirely are removed, a new connection sends the others again
+            var sentFrames = 0;
+            for (var size = frameSize(bbout, 0); size != -1 && size <= headSent; size = frameSize(bbout, sentFrames)) {
+                sentFrames += size;
+                headSent -= size;
+            }
+            bbout.position(sentFrames);
             bbout.compact();
             processOut();
             updateInterestOps();
         }
 
+        /**
+         * @return the size of the frame starting at index in bb, in read-mode,
+         *         -1 if there is none
+         */
+        private static int frameSize(ByteBuffer bb, int index) {
+            if (index == bb.limit()) {
+                return -1;
+            }
+            var messageIndex = index + Integer.BYTES + bb.getInt(index);
+            return messageIndex + Integer.BYTES + bb.getInt(messageIndex) - index;
+        }
+
         public void doConnect() throws IOException {
            if(!sc.finishConnect()) {
         	   return;
            }
-           key.interestOps(SelectionKey.OP_WRITE);
+           client.onConnected();
+           processOut();
+           updateInterestOps();
+        }
+    }
+
+    /**
+     * Subscription of the subscriber of the messages, request and cancel can be
+     * called from any thread, the subscriber is signaled by the select loop
+     */
+    static private class MessageSubscription implements Flow.Subscription {
+
+        final private Flow.Subscriber<? super Message> subscriber;
+        final private ClientChat client;
+        final private AtomicLong demand = new AtomicLong();
+        private volatile boolean cancelled = false;
+        private volatile boolean invalidRequest = false;
+
+        private MessageSubscription(Flow.Subscriber<? super Message> subscriber, ClientChat client) {
+            this.subscriber = subscriber;
+            this.client = client;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = true;
+                client.wakeup();
+                return;
+            }
+            if (demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added) == 0) {
+                client.wakeup(); // reading was paused
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            client.wakeup();
         }
     }
 
     static private int BUFFER_SIZE = 10_000;
+    static private int QUEUE_CAPACITY = 4_096;
+    static private long INITIAL_BACKOFF = 100; // milliseconds
+    static private long MAX_BACKOFF = 30_000;
     static private Logger logger = Logger.getLogger(ClientChat.class.getName());
 
 
-    private final SocketChannel sc;
+    private SocketChannel sc;
     private final Selector selector;
     private final InetSocketAddress serverAddress;
+    private final SocketProfile profile;
     private final String login;
+    private final byte[] loginBytes;
     private final Thread console;
-    private final ArrayBlockingQueue<String> commandQueue = new ArrayBlockingQueue<>(10);
+    private final ArrayBlockingQueue<String> commandQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final AtomicReference<MessageSubscription> subscription = new AtomicReference<>();
+    private volatile Consumer<? super Message> listener = __ -> {};
+    private final Set<String> rooms = new HashSet<>(); // joined, to join them again after a reconnection
+    private final Queue<String> pendingJoins = new ArrayDeque<>();
     private Context uniqueContext;
+    private long backoff = INITIAL_BACKOFF;
+    private long reconnectTime = 0; // time of the next connection attempt, 0 if connected or connecting
 
     public ClientChat(String login, InetSocketAddress serverAddress) throws IOException {
+        this(login, serverAddress, SocketProfile.fromSystemProperty());
+    }
+
+    /**
+     * @param profile the options of the connections to the server
+     * @throws IOException
+     */
+    public ClientChat(String login, InetSocketAddress serverAddress, SocketProfile profile) throws IOException {
         this.serverAddress = serverAddress;
+        this.profile = Objects.requireNonNull(profile);
         this.login = login;
-        this.sc = SocketChannel.open();
+        this.loginBytes = login.getBytes(Context.UTF8);
         this.selector = Selector.open();
         this.console = new Thread(this::consoleRun);
     }
@@ -196,7 +348,7 @@ public class ClientChat {
             var scan = new Scanner(System.in);
             while (scan.hasNextLine()) {
                 var msg = scan.nextLine();
-                sendCommand(msg);
+                sendMessage(msg);
             }
         } catch (InterruptedException e) {
             logger.info("Console thread has been interrupted");
@@ -206,60 +358,190 @@ public class ClientChat {
     }
 
     /**
-     * Send a command to the selector via commandQueue and wake it up
+     * Starts a thread sending the lines typed on the console
+     */
+    public void startConsole() {
+        console.start();
+    }
+
+    /**
+     * Queues msg to be sent by the select loop, blocks while the queue is full.
+     * This method can be called from any thread.
      *
      * @param msg
      * @throws InterruptedException
      */
+    public void sendMessage(String msg) throws InterruptedException {
+        commandQueue.put(Objects.requireNonNull(msg));
+        wakeup();
+    }
+
+    private void wakeup() {
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
 
+    /**
+     * Registers the callback receiving the messages, it is called by the thread of
+     * the select loop
+     */
+    public void setMessageListener(Consumer<? super Message> listener) {
+        this.listener = Objects.requireNonNull(listener);
+    }
 
-    private void sendCommand(String msg) throws InterruptedException {
-    	Objects.requireNonNull(msg);
-    	try {
-    		commandQueue.add(msg);
-    		selector.wakeup();
-    	}catch (IllegalStateException e) {
-    		logger.warning("queue is full, msg ignored");
-    	}
-    	
+    /**
+     * @return a publisher of the messages received, for a single subscriber at a
+     *         time. The socket is not read while the subscriber has no pending
+     *         demand. It is signaled by the thread of the select loop.
+     */
+    public Flow.Publisher<Message> messages() {
+        return subscriber -> {
+            var newSubscription = new MessageSubscription(Objects.requireNonNull(subscriber), this);
+            if (subscription.compareAndSet(null, newSubscription)) {
+                subscriber.onSubscribe(newSubscription);
+            } else {
+                subscriber.onSubscribe(new MessageSubscription(subscriber, this));
+                subscriber.onError(new IllegalStateException("already subscribed"));
+            }
+        };
     }
 
     /**
-     * Processes the command from commandQueue
+     * @return false if the subscriber of the messages has no pending demand
      */
+    private boolean canDeliver() {
+        var current = subscription.get();
+        return current == null || current.cancelled || current.invalidRequest || current.demand.get() > 0;
+    }
 
+    private void deliver(Message msg) {
+        listener.accept(msg);
+        var current = subscription.get();
+        if (current != null && !current.cancelled && !current.invalidRequest) {
+            current.demand.decrementAndGet();
+            current.subscriber.onNext(msg);
+        }
+    }
+
+    /**
+     * Signals the end of the messages to the subscriber, if any
+     *
+     * @param error the cause of the end, null once the client has stopped
+     */
+    private void complete(Throwable error) {
+        var current = subscription.getAndSet(null);
+        if (current == null || current.cancelled) {
+            return;
+        }
+        if (error == null) {
+            current.subscriber.onComplete();
+        } else {
+            current.subscriber.onError(error);
+        }
+    }
+
+    /**
+     * Sends the queued messages, as many as bbout can hold, and handles the
+     * requests of the subscriber of the messages
+     */
     private void processCommands(){
-    	//intrestOPS
-    	synchronized (serverAddress) {
-    		var msg = commandQueue.poll();
-    			if (msg == null) {
-    				return;
-    			}
-    			
-    			var bb = ByteBuffer.allocate(BUFFER_SIZE);
-    			bb.putInt(login.length()).put(Context.UTF8.encode(login));
-    			bb.putInt(msg.length()).put(Context.UTF8.encode(msg));
-    			uniqueContext.queueMessage(bb);
-		}
+        wakeupPending.set(false); // the messages queued from now wake up the selector again
+        var current = subscription.get();
+        if (current != null && current.invalidRequest) {
+            complete(new IllegalArgumentException("non-positive request"));
+        } else if (current != null && current.cancelled) {
+            subscription.compareAndSet(current, null);
+        }
+        if (reconnectTime != 0 || uniqueContext.sc.isConnectionPending()) {
+            return;
+        }
+        try {
+            uniqueContext.processIn();
+        } catch (ProtocolException e) {
+            disconnected(e);
+            return;
+        }
+        uniqueContext.processOut();
+        uniqueContext.updateInterestOps();
     }
 
-    public void launch() throws IOException {
-        sc.configureBlocking(false);
-        var key = sc.register(selector, SelectionKey.OP_CONNECT);
-        uniqueContext = new Context(key);
-        key.attach(uniqueContext);
-        sc.connect(serverAddress);
+    /**
+     * Records the rooms joined and left by msg
+     */
+    private void trackRooms(String msg) {
+        if (msg.startsWith("/join ")) {
+            rooms.add(msg.substring("/join ".length()).strip());
+        } else if (msg.startsWith("/leave ")) {
+            rooms.remove(msg.substring("/leave ".length()).strip());
+        }
+    }
 
-        console.start();
+    /**
+     * Opens a new connection, the frames not entirely sent on the previous one
+     * are kept in bbout
+     */
+    private void connect() {
+        try {
+            sc = SocketChannel.open();
+            profile.configure(sc);
+            sc.configureBlocking(false);
+            var key = sc.register(selector, SelectionKey.OP_CONNECT);
+            uniqueContext = new Context(this, key, uniqueContext);
+            key.attach(uniqueContext);
+            if (sc.connect(serverAddress)) {
+                uniqueContext.doConnect();
+            }
+        } catch (IOException e) {
+            disconnected(e);
+        }
+    }
+
+    /**
+     * Called once connected, the rooms are joined again before the messages
+     * queued while disconnected are sent
+     */
+    private void onConnected() {
+        logger.info("Connected to " + serverAddress);
+        backoff = INITIAL_BACKOFF;
+        pendingJoins.clear();
+        for (var room : rooms) {
+            pendingJoins.add("/join " + room);
+        }
+    }
+
+    /**
+     * Closes the connection and schedules the next attempt, after a delay
+     * doubling at each failure with a random jitter, so that the clients of a
+     * restarted server do not reconnect all at once
+     */
+    private void disconnected(IOException cause) {
+        silentlyClose();
+        var delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        reconnectTime = System.currentTimeMillis() + delay;
+        logger.info("Disconnected (" + cause.getMessage() + "), reconnecting in " + delay + " ms");
+    }
 
+    /**
+     * Runs the select loop until the thread is interrupted, the connection is
+     * opened again each time it is lost
+     *
+     * @throws IOException
+     */
+    public void launch() throws IOException {
+        connect();
         while(!Thread.interrupted()) {
-            try {
-                selector.select(this::treatKey);
-                processCommands();
-            } catch (UncheckedIOException tunneled) {
-                throw tunneled.getCause();
+            var timeout = reconnectTime == 0 ? 0 : Math.max(1, reconnectTime - System.currentTimeMillis());
+            selector.select(this::treatKey, timeout);
+            if (reconnectTime != 0 && System.currentTimeMillis() >= reconnectTime) {
+                reconnectTime = 0;
+                connect();
             }
+            processCommands();
         }
+        silentlyClose();
+        complete(null);
     }
 
     private void treatKey(SelectionKey key) {
@@ -274,16 +556,15 @@ public class ClientChat {
                 uniqueContext.doRead();
             }
         } catch(IOException ioe) {
-            // lambda call in select requires to tunnel IOException
-        	logger.info("Closing sc");
-        	silentlyClose(key);
-            throw new UncheckedIOException(ioe);
+            disconnected(ioe);
         }
     }
 
 
-    private void silentlyClose(SelectionKey key) {
-        Channel sc = (Channel) key.channel();
+    private void silentlyClose() {
+        if (sc == null) {
+            return;
+        }
         try {
             sc.close();
         } catch (IOException e) {
@@ -297,7 +578,10 @@ public class ClientChat {
             usage();
             return;
         }
-        new ClientChat(args[0],new InetSocketAddress(args[1],Integer.parseInt(args[2]))).launch();
+        var client = new ClientChat(args[0],new InetSocketAddress(args[1],Integer.parseInt(args[2])));
+        client.setMessageListener(msg -> System.out.println(msg.getLogin() + ": " + msg.getMessage()));
+        client.startConsole();
+        client.launch();
     }
 
     private static void usage(){
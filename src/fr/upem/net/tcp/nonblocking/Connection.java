@@ -0,0 +1,121 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A connection handled by a Reactor.
+ *
+ * The Reactor calls doWrite, then doRead, with the readiness of the key and
+ * recomputes the interest ops once with updateInterestOps. A connection whose
+ * interestOps is 0 has nothing left to do and is closed.
+ */
+public abstract class Connection {
+
+	protected final SelectionKey key;
+	protected final SocketChannel sc;
+	private boolean closed = false;
+	boolean activeSinceLastTimeoutCheck = true; // maintained by the Reactor
+	boolean activeSinceLastQuietCheck = true; // maintained by the Reactor
+
+	protected Connection(SelectionKey key) {
+		this.key = key;
+		this.sc = (SocketChannel) key.channel();
+	}
+
+	/**
+	 * Performs up to spins reads on sc
+	 *
+	 * @throws IOException
+	 */
+	protected abstract void doRead(int spins) throws IOException;
+
+	/**
+	 * Performs up to spins writes on sc
+	 *
+	 * @throws IOException
+	 */
+	protected abstract void doWrite(int spins) throws IOException;
+
+	/**
+	 * @return the operations the connection waits for once connected, 0 if it is
+	 *         finished
+	 */
+	protected abstract int interestOps();
+
+	/**
+	 * Finishes the connection of a channel opened by Reactor.connect
+	 *
+	 * @throws IOException
+	 */
+	protected void doConnect() throws IOException {
+		if (sc.finishConnect()) {
+			onConnected();
+		}
+	}
+
+	/**
+	 * Called once a channel opened by Reactor.connect is connected
+	 *
+	 * @throws IOException
+	 */
+	protected void onConnected() throws IOException {
+		// nothing by default
+	}
+
+	/**
+	 * Called by the Reactor when the connection has been inactive for its quiet
+	 * period, the connection can release the memory it no longer needs
+	 */
+	protected void onQuiet() {
+		// nothing by default
+	}
+
+	/**
+	 * Called once, when the connection is closed for whatever reason
+	 */
+	protected void onClose() {
+		// nothing by default
+	}
+
+	/**
+	 * Update the interestOps of the key with the value of interestOps, closes the
+	 * connection if there is nothing left to do
+	 */
+	protected void updateInterestOps() {
+		if (!key.isValid()) {
+			return;
+		}
+		if (sc.isConnectionPending()) {
+			key.interestOps(SelectionKey.OP_CONNECT);
+			return;
+		}
+		var interestOps = interestOps();
+		if (interestOps == 0) {
+			close();
+		} else {
+			key.interestOps(interestOps);
+		}
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Closes sc, ignoring exceptions, and calls onClose the first time
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			sc.close();
+		} catch (IOException e) {
+			// ignore exception
+		}
+		onClose();
+	}
+}
@@ -0,0 +1,126 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Measures the rate of connections served by ServerSumOneShot, each client
+ * connection sends one request and reads its answer.
+ *
+ * The server runs in this JVM, each second the benchmark reports the number of
+ * connections served, the resident memory of the process and the direct
+ * buffers in use, so that the plateau of the native memory can be checked.
+ */
+public class ConnectionChurnBenchmark {
+
+	private static final Logger logger = Logger.getLogger(ConnectionChurnBenchmark.class.getName());
+
+	/**
+	 * Opens connections to server, one at a time, until deadline
+	 */
+	private static void churn(InetSocketAddress server, long deadline, AtomicLong served) throws IOException {
+		var request = ByteBuffer.allocate(2 * Integer.BYTES);
+		var answer = ByteBuffer.allocate(Integer.BYTES);
+		while (System.nanoTime() < deadline) {
+			try (var sc = SocketChannel.open(server)) {
+				sc.setOption(StandardSocketOptions.SO_LINGER, 0); // no TIME_WAIT, the ports are reused at once
+				sc.write(request.clear().putInt(1).putInt(2).flip());
+				answer.clear();
+				while (answer.hasRemaining()) {
+					if (sc.read(answer) == -1) {
+						throw new IOException("connection closed before the answer");
+					}
+				}
+				if (answer.flip().getInt() != 3) {
+					throw new IllegalStateException("wrong answer");
+				}
+			}
+			served.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return the resident set size of the process in kB, -1 if unknown
+	 */
+	private static long residentSetSize() {
+		try {
+			for (var line : Files.readAllLines(Path.of("/proc/self/status"))) {
+				if (line.startsWith("VmRSS:")) {
+					return Long.parseLong(line.replaceAll("[^0-9]", ""));
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+			// not on Linux
+		}
+		return -1;
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length != 4 && args.length != 5) {
+			usage();
+			return;
+		}
+		var port = Integer.parseInt(args[0]);
+		var maxFreeBuffers = Integer.parseInt(args[1]);
+		var threads = Integer.parseInt(args[2]);
+		var seconds = Integer.parseInt(args[3]);
+		var reactors = args.length == 5 ? Integer.parseInt(args[4]) : 1;
+
+		var server = new ServerSumOneShot(port, maxFreeBuffers, reactors);
+		var serverThread = new Thread(() -> {
+			try {
+				server.launch();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		var direct = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+				.filter(pool -> pool.getName().equals("direct")).findFirst().orElseThrow();
+		var address = new InetSocketAddress("localhost", port);
+		var served = new AtomicLong();
+		var deadline = System.nanoTime() + seconds * 1_000_000_000L;
+		var clients = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			var client = new Thread(() -> {
+				try {
+					churn(address, deadline, served);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+			clients.add(client);
+			client.start();
+		}
+		var last = 0L;
+		for (int second = 1; second <= seconds; second++) {
+			Thread.sleep(1_000);
+			var total = served.get();
+			logger.info(String.format("%ds : %d connections/s, RSS %d kB, %d direct buffers using %d kB", second,
+					total - last, residentSetSize(), direct.getCount(), direct.getMemoryUsed() / 1_024));
+			last = total;
+		}
+		for (var client : clients) {
+			client.join();
+		}
+		logger.info(String.format("%d connections in %d s, %d connections/s", served.get(), seconds,
+				served.get() / seconds));
+	}
+
+	private static void usage() {
+		System.out.println("Usage : ConnectionChurnBenchmark port maxFreeBuffers threads seconds [reactors]");
+	}
+}
@@ -0,0 +1,83 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Objects;
+
+/**
+ * Prints the state of the selector from the select loop, to help understanding
+ * its behavior. Every line is written synchronously, it is meant for debugging
+ * only.
+ */
+class ConsoleSelectorTracer implements SelectorTracer {
+
+	private final PrintStream out;
+
+	ConsoleSelectorTracer(PrintStream out) {
+		this.out = Objects.requireNonNull(out);
+	}
+
+	static String interestOpsToString(int interestOps) {
+		var list = new ArrayList<String>();
+		if ((interestOps & SelectionKey.OP_ACCEPT) != 0) list.add("OP_ACCEPT");
+		if ((interestOps & SelectionKey.OP_CONNECT) != 0) list.add("OP_CONNECT");
+		if ((interestOps & SelectionKey.OP_READ) != 0) list.add("OP_READ");
+		if ((interestOps & SelectionKey.OP_WRITE) != 0) list.add("OP_WRITE");
+		return String.join("|", list);
+	}
+
+	static String readyOpsToString(int readyOps) {
+		var list = new ArrayList<String>();
+		if ((readyOps & SelectionKey.OP_ACCEPT) != 0) list.add("ACCEPT");
+		if ((readyOps & SelectionKey.OP_CONNECT) != 0) list.add("CONNECT");
+		if ((readyOps & SelectionKey.OP_READ) != 0) list.add("READ");
+		if ((readyOps & SelectionKey.OP_WRITE) != 0) list.add("WRITE");
+		return String.join(" and ", list);
+	}
+
+	static String channelToString(SelectableChannel channel) {
+		if (channel instanceof ServerSocketChannel) {
+			return "ServerSocketChannel";
+		}
+		if (channel instanceof SocketChannel) {
+			try {
+				return "Client " + ((SocketChannel) channel).getRemoteAddress();
+			} catch (IOException e) { // closed, the channel is still told apart from the others
+				return "Client #" + Integer.toHexString(System.identityHashCode(channel));
+			}
+		}
+		return channel.toString();
+	}
+
+	@Override
+	public void beforeSelect(Selector selector) {
+		var keys = selector.keys();
+		if (keys.isEmpty()) {
+			out.println("The selector contains no key : this should not happen!");
+		} else {
+			out.println("The selector contains:");
+			for (var key : keys) {
+				out.println("\tKey for " + channelToString(key.channel()) + " : "
+						+ (key.isValid() ? interestOpsToString(key.interestOps()) : "CANCELLED"));
+			}
+		}
+		out.println("Starting select");
+	}
+
+	@Override
+	public void selectedKey(SelectionKey key) {
+		out.println("\t" + channelToString(key.channel()) + " can perform : "
+				+ (key.isValid() ? readyOpsToString(key.readyOps()) : "CANCELLED"));
+	}
+
+	@Override
+	public void afterSelect(Selector selector, int selected) {
+		out.println("Select finished");
+	}
+}
@@ -0,0 +1,127 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Measures the throughput of ServerEcho, alone or behind a ServerRelay.
+ *
+ * The servers run in this JVM so that the CPU time of their selector thread can
+ * be measured, the throughput is reported per second of wall time and per
+ * second of CPU time of the measured server thread (GB/s per core).
+ */
+public class EchoBenchmark {
+
+	private static final Logger logger = Logger.getLogger(EchoBenchmark.class.getName());
+	private static final int BUFFER_SIZE = 64 * 1_024;
+
+	private interface IOAction {
+		void run() throws IOException;
+	}
+
+	private static Thread startServer(IOAction launch) {
+		var thread = new Thread(() -> {
+			try {
+				launch.run();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Sends size bytes on a connection while reading them back
+	 *
+	 * @return the number of bytes echoed
+	 */
+	private static long echo(InetSocketAddress server, long size) throws IOException, InterruptedException {
+		try (var sc = SocketChannel.open(server)) {
+			var writer = new Thread(() -> {
+				var bb = ByteBuffer.allocateDirect(BUFFER_SIZE);
+				try {
+					for (var sent = 0L; sent < size;) {
+						bb.clear();
+						bb.limit((int) Math.min(BUFFER_SIZE, size - sent));
+						sent += sc.write(bb);
+					}
+					sc.shutdownOutput();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+			writer.start();
+			var bb = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			var received = 0L;
+			int read;
+			while ((read = sc.read(bb)) != -1) {
+				received += read;
+				bb.clear();
+			}
+			writer.join();
+			return received;
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length != 4 || !(args[0].equals("echo") || args[0].equals("relay"))) {
+			usage();
+			return;
+		}
+		var port = Integer.parseInt(args[1]);
+		var connections = Integer.parseInt(args[2]);
+		var size = Long.parseLong(args[3]) * 1_024 * 1_024;
+
+		Thread measured;
+		if (args[0].equals("echo")) {
+			var echo = new ServerEcho(port);
+			measured = startServer(echo::launch);
+		} else {
+			var echo = new ServerEcho(port + 1);
+			startServer(echo::launch);
+			var relay = new ServerRelay(port, new InetSocketAddress("localhost", port + 1));
+			measured = startServer(relay::launch);
+		}
+
+		var threadMXBean = ManagementFactory.getThreadMXBean();
+		var server = new InetSocketAddress("localhost", port);
+		var total = new AtomicLong();
+		var clients = new ArrayList<Thread>();
+		var cpuStart = threadMXBean.getThreadCpuTime(measured.getId());
+		var start = System.nanoTime();
+		for (int i = 0; i < connections; i++) {
+			var client = new Thread(() -> {
+				try {
+					total.addAndGet(echo(server, size));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			clients.add(client);
+			client.start();
+		}
+		for (var client : clients) {
+			client.join();
+		}
+		var elapsed = System.nanoTime() - start;
+		var cpu = threadMXBean.getThreadCpuTime(measured.getId()) - cpuStart;
+		logger.info(String.format("%s : %d MB echoed in %d ms, %.2f GB/s, %.2f GB/s per core of the %s thread",
+				args[0], total.get() / (1_024 * 1_024), elapsed / 1_000_000, total.get() / (double) elapsed,
+				total.get() / (double) Math.max(cpu, 1), args[0]));
+	}
+
+	private static void usage() {
+		System.out.println("Usage : EchoBenchmark echo|relay port connections megabytesPerConnection");
+	}
+}
@@ -0,0 +1,111 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Connection sending back every byte it receives.
+ *
+ * The bytes are kept in a RingBuffer in direct memory whose size follows the
+ * reads of the client, it goes back to the minimum once the client is quiet.
+ * Its buffers are taken from the pools of the sizer.
+ */
+class EchoConnection extends Connection {
+
+	static final int BUFFER_SIZE = 1_024;
+	static final int MIN_BUFFER_SIZE = 64;
+	static final int MAX_BUFFER_SIZE = 64 * 1_024;
+
+	private final AdaptiveBufferSizer sizer;
+	private RingBuffer ring; // direct memory, read and written in place
+	private boolean inputClosed = false;
+
+	EchoConnection(SelectionKey key) {
+		this(key, new AdaptiveBufferSizer(MIN_BUFFER_SIZE, BUFFER_SIZE, MAX_BUFFER_SIZE));
+	}
+
+	EchoConnection(SelectionKey key, AdaptiveBufferSizer sizer) {
+		super(key);
+		this.sizer = sizer;
+		this.ring = new RingBuffer(sizer.allocateDirect());
+	}
+
+	/**
+	 * Moves the bytes of ring to a buffer of the size guessed by sizer, if they
+	 * fit, the previous buffer is released
+	 */
+	private void resize() {
+		var size = sizer.size();
+		if (ring.capacity() == size || ring.size() > size) {
+			return;
+		}
+		var previous = ring;
+		ring = previous.moveTo(sizer.allocateDirect());
+		sizer.release(previous.buffer());
+	}
+
+	/**
+	 * Performs up to spins reads on sc, scattering the bytes in the free segments
+	 * of ring. Each read is echoed at once so that ring does not fill up. It
+	 * stops as soon as a read does not fill the offered space, sc is then
+	 * drained.
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	protected void doRead(int spins) throws IOException {
+		for (int i = 0; i < spins && !inputClosed && !ring.isFull(); i++) {
+			var offered = ring.remaining();
+			var read = ring.readFrom(sc);
+			if (read == -1) {
+				inputClosed = true;
+				return;
+			}
+			sizer.record(offered, (int) read);
+			ring.writeTo(sc);
+			resize();
+			if (read < offered) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Performs up to spins writes on sc, gathering the bytes from the segments of
+	 * ring. It stops as soon as sc accepts no more bytes.
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	protected void doWrite(int spins) throws IOException {
+		for (int i = 0; i < spins && !ring.isEmpty(); i++) {
+			if (ring.writeTo(sc) == 0) {
+				break;
+			}
+		}
+		resize(); // a shrink may have waited for the data to be written
+	}
+
+	@Override
+	protected void onQuiet() {
+		sizer.recordQuiet();
+		resize();
+	}
+
+	@Override
+	protected void onClose() {
+		sizer.release(ring.buffer());
+	}
+
+	@Override
+	protected int interestOps() {
+		int interestOps = 0;
+		if (!ring.isFull() && !inputClosed) {
+			interestOps |= SelectionKey.OP_READ;
+		}
+		if (!ring.isEmpty()) {
+			interestOps |= SelectionKey.OP_WRITE;
+		}
+		return interestOps;
+	}
+}
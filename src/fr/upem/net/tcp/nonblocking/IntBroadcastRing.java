@@ -0,0 +1,118 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashSet;
+import java.util.Objects;
+
+/**
+ * BroadcastRing specialized for ints, the values are stored in an int array
+ * and read in bulk into a ByteBuffer.
+ */
+class IntBroadcastRing {
+
+	/**
+	 * Position of a subscriber in the ring
+	 */
+	final class Cursor {
+		private long next; // sequence of the next value to read
+		private boolean waiting = false;
+		private final Runnable listener;
+
+		private Cursor(Runnable listener) {
+			this.next = published;
+			this.listener = listener;
+		}
+
+		/**
+		 * @return true if values have been overwritten before being read
+		 */
+		boolean isLost() {
+			return published - next > values.length;
+		}
+
+		boolean hasNext() {
+			return next != published;
+		}
+
+		/**
+		 * Moves as many values as possible to bb, in write-mode
+		 *
+		 * @return the number of values moved
+		 */
+		int drainTo(ByteBuffer bb) {
+			if (isLost()) {
+				throw new IllegalStateException("values lost");
+			}
+			var count = (int) Math.min(published - next, bb.remaining() / Integer.BYTES);
+			for (int i = 0; i < count; i++) {
+				bb.putInt(values[(int) (next++ & mask)]);
+			}
+			return count;
+		}
+
+		/**
+		 * Calls the listener of the cursor at the next publish, once
+		 */
+		void await() {
+			if (!waiting) {
+				waiting = true;
+				waitingCursors.add(this);
+			}
+		}
+
+		/**
+		 * Stops waiting, the listener is no longer called. The cursor must be
+		 * closed when its subscriber is gone, so that the ring does not keep it.
+		 */
+		void close() {
+			if (waiting) {
+				waiting = false;
+				waitingCursors.remove(this);
+			}
+		}
+	}
+
+	private final int[] values;
+	private final int mask;
+	private long published = 0; // sequence of the next value published
+	private LinkedHashSet<Cursor> waitingCursors = new LinkedHashSet<>(); // a set so that close is cheap
+	private LinkedHashSet<Cursor> notifiedCursors = new LinkedHashSet<>(); // reused to notify while cursors wait again
+
+	/**
+	 * @param capacity the number of values kept, rounded up to a power of two
+	 */
+	IntBroadcastRing(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		values = new int[capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1];
+		mask = values.length - 1;
+	}
+
+	/**
+	 * @param listener called by the ring when the cursor waits and a value is
+	 *                 published
+	 * @return a cursor on the values published from now
+	 */
+	Cursor subscribe(Runnable listener) {
+		return new Cursor(Objects.requireNonNull(listener));
+	}
+
+	/**
+	 * Publishes value to the subscribers and notifies the waiting ones
+	 */
+	void publish(int value) {
+		values[(int) (published++ & mask)] = value;
+		if (waitingCursors.isEmpty()) {
+			return;
+		}
+		var notified = waitingCursors;
+		waitingCursors = notifiedCursors;
+		notifiedCursors = notified;
+		for (var cursor : notified) {
+			cursor.waiting = false;
+			cursor.listener.run();
+		}
+		notified.clear();
+	}
+}
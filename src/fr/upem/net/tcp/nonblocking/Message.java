@@ -1,5 +1,8 @@
 package fr.upem.net.tcp.nonblocking;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Objects;
 
 public class Message {
@@ -26,6 +29,7 @@ public class Message {
 		}
 	}
 
+	private static final Charset UTF8 = StandardCharsets.UTF_8;
 	private final String login;
 	private final String message;
 
@@ -41,8 +45,18 @@ public class Message {
 		return message;
 	}
 	
-	int size() {
-		return Integer.BYTES *2 + (login.length() + message.length()) * Character.BYTES;  
+	/**
+	 * @return the frame of the message, in read-mode : the size of the login in
+	 *         bytes, the login in UTF8, the size of the message in bytes and the
+	 *         message in UTF8
+	 */
+	ByteBuffer encode() {
+		var encodedLogin = UTF8.encode(login);
+		var encodedMessage = UTF8.encode(message);
+		var bb = ByteBuffer.allocate(Integer.BYTES * 2 + encodedLogin.remaining() + encodedMessage.remaining());
+		bb.putInt(encodedLogin.remaining()).put(encodedLogin);
+		bb.putInt(encodedMessage.remaining()).put(encodedMessage);
+		return bb.flip();
 	}
 
 }
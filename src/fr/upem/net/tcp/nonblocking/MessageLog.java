@@ -0,0 +1,323 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import fr.upem.net.tcp.nonblocking.Reader.ProcessStatus;
+
+/**
+ * Append-only log of Message frames, stored in segment files of a directory.
+ *
+ * Each frame gets an offset, its rank in the log. The frames appended are only
+ * kept in memory until commit, which writes all of them with a gathering write:
+ * calling commit once per select loop groups the writes of a whole loop. The
+ * position of every frame in its segment is indexed, so that the frames from
+ * an offset are read back as file regions, sent with transferTo.
+ *
+ * Each frame has a topic, the room of its message, kept in the index so that
+ * a reader only gets the frames of its own topics. The topics of the frames
+ * already stored are computed again from their messages when the log is
+ * opened.
+ *
+ * The methods must be called from a single thread.
+ */
+class MessageLog implements AutoCloseable {
+
+	/**
+	 * Bytes of a segment file still to be sent
+	 */
+	static class Region {
+		private final FileChannel channel;
+		private final long start;
+		private long position;
+		private final long end;
+
+		private Region(FileChannel channel, long position, long end) {
+			this.channel = channel;
+			this.start = position;
+			this.position = position;
+			this.end = end;
+		}
+
+		/**
+		 * Sends the bytes of the region from the file to target, without copying
+		 * them in the heap
+		 *
+		 * @return the number of bytes sent
+		 * @throws IOException
+		 */
+		long transferTo(WritableByteChannel target) throws IOException {
+			var sent = channel.transferTo(position, end - position, target);
+			position += sent;
+			return sent;
+		}
+
+		/**
+		 * @return true if part of the region has been sent, the frame in progress
+		 *         may be incomplete
+		 */
+		boolean isStarted() {
+			return position != start;
+		}
+
+		boolean isDone() {
+			return position == end;
+		}
+	}
+
+	/**
+	 * A segment file, holding the frames from offset baseOffset
+	 */
+	static private class Segment {
+		private final long baseOffset;
+		private final FileChannel channel;
+		private int[] positions = new int[1_024]; // position of each frame in the file
+		private String[] topics = new String[1_024]; // topic of each frame
+		private int count = 0;
+		private long size = 0;
+
+		private Segment(long baseOffset, FileChannel channel) {
+			this.baseOffset = baseOffset;
+			this.channel = channel;
+		}
+
+		private void index(long position, String topic) {
+			if (count == positions.length) {
+				positions = Arrays.copyOf(positions, count * 2);
+				topics = Arrays.copyOf(topics, count * 2);
+			}
+			topics[count] = topic;
+			positions[count++] = (int) position;
+		}
+	}
+
+	static private final String SUFFIX = ".log";
+	static private final Pattern SEGMENT_NAME = Pattern.compile("\\d{20}\\.log"); // base offset of the segment
+	static private final int DEFAULT_SEGMENT_SIZE = 64 * 1_024 * 1_024;
+	static private Logger logger = Logger.getLogger(MessageLog.class.getName());
+
+	private final Path directory;
+	private final int segmentSize;
+	private final boolean sync;
+	private final Function<Message, String> topicOf;
+	private final HashMap<String, String> topicNames = new HashMap<>(); // to share the topic strings of the index
+	private final ArrayList<Segment> segments = new ArrayList<>();
+	private final ArrayList<ByteBuffer> pending = new ArrayList<>(); // appended since the last commit
+	private final ArrayList<String> pendingTopics = new ArrayList<>();
+
+	/**
+	 * Opens the log of directory, appending after the frames already stored.
+	 * An incomplete frame at the end of the last segment is discarded.
+	 *
+	 * @param topicOf gives the topic of the message of a stored frame, the same
+	 *                as the one given to append
+	 * @throws IOException
+	 */
+	MessageLog(Path directory, Function<Message, String> topicOf) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE, false, topicOf);
+	}
+
+	/**
+	 * @param segmentSize the size beyond which a new segment is started
+	 * @param sync        whether each commit forces the frames to the disk
+	 * @throws IOException
+	 */
+	MessageLog(Path directory, int segmentSize, boolean sync, Function<Message, String> topicOf)
+			throws IOException {
+		if (segmentSize <= 0) {
+			throw new IllegalArgumentException("segment size must be positive");
+		}
+		this.directory = Files.createDirectories(directory);
+		this.segmentSize = segmentSize;
+		this.sync = sync;
+		this.topicOf = Objects.requireNonNull(topicOf);
+		try (var files = Files.list(directory)) {
+			var names = files.map(path -> path.getFileName().toString())
+					.filter(name -> SEGMENT_NAME.matcher(name).matches()).sorted().toArray(String[]::new);
+			for (var name : names) {
+				long baseOffset;
+				try {
+					baseOffset = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+				} catch (NumberFormatException e) {
+					logger.warning("Ignoring " + name + ", not a segment of the log");
+					continue;
+				}
+				recover(openSegment(baseOffset));
+			}
+		}
+		if (segments.isEmpty()) {
+			openSegment(0);
+		}
+	}
+
+	private Segment openSegment(long baseOffset) throws IOException {
+		var path = directory.resolve(String.format("%020d%s", baseOffset, SUFFIX));
+		var segment = new Segment(baseOffset,
+				FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+		segments.add(segment);
+		return segment;
+	}
+
+	private String topicName(String topic) {
+		return topicNames.computeIfAbsent(topic, Function.identity());
+	}
+
+	/**
+	 * Indexes the frames of segment, and truncates it after the last complete
+	 * one
+	 *
+	 * @throws IOException
+	 */
+	private void recover(Segment segment) throws IOException {
+		var channel = segment.channel;
+		var fileSize = channel.size();
+		var header = ByteBuffer.allocate(Integer.BYTES);
+		var frame = ByteBuffer.allocate(1_024);
+		var reader = new MessageReader();
+		var position = 0L;
+		while (true) {
+			var end = position;
+			for (int i = 0; i < 2 && end != -1; i++) {
+				header.clear();
+				if (end + Integer.BYTES > fileSize || channel.read(header, end) != Integer.BYTES) {
+					end = -1;
+				} else {
+					var length = header.flip().getInt();
+					end = length < 0 ? -1 : end + Integer.BYTES + length;
+				}
+			}
+			if (end == -1 || end > fileSize) {
+				break;
+			}
+			var frameSize = (int) (end - position);
+			if (frame.capacity() < frameSize) {
+				frame = ByteBuffer.allocate(frameSize);
+			}
+			frame.clear().limit(frameSize);
+			while (frame.hasRemaining()) {
+				channel.read(frame, position + frame.position());
+			}
+			reader.reset();
+			if (reader.process(frame) != ProcessStatus.DONE) {
+				break; // not a Message, dropped with what follows
+			}
+			segment.index(position, topicName(topicOf.apply(reader.get())));
+			position = end;
+		}
+		if (position != fileSize) {
+			logger.info("Truncating " + (fileSize - position) + " bytes of incomplete frame");
+			channel.truncate(position);
+		}
+		segment.size = position;
+	}
+
+	/**
+	 * @return the offset of the next frame appended
+	 */
+	long nextOffset() {
+		var last = segments.get(segments.size() - 1);
+		return last.baseOffset + last.count + pending.size();
+	}
+
+	/**
+	 * Appends a frame to the log, it is written by the next commit
+	 *
+	 * @param frame in read-mode, it is not modified
+	 * @param topic the topic of its message
+	 * @return the offset of the frame
+	 */
+	long append(ByteBuffer frame, String topic) {
+		var offset = nextOffset();
+		pending.add(frame.duplicate());
+		pendingTopics.add(topicName(topic));
+		return offset;
+	}
+
+	/**
+	 * Writes the frames appended since the last commit
+	 *
+	 * @throws IOException
+	 */
+	void commit() throws IOException {
+		var from = 0;
+		while (from < pending.size()) {
+			var segment = segments.get(segments.size() - 1);
+			if (segment.size >= segmentSize) {
+				segment = openSegment(segment.baseOffset + segment.count);
+			}
+			var to = from;
+			var end = segment.size;
+			while (to < pending.size() && (to == from || end + pending.get(to).remaining() <= segmentSize)) {
+				segment.index(end, pendingTopics.get(to));
+				end += pending.get(to++).remaining();
+			}
+			var frames = pending.subList(from, to).toArray(new ByteBuffer[0]);
+			segment.channel.position(segment.size);
+			while (segment.channel.position() < end) {
+				segment.channel.write(frames);
+			}
+			segment.size = end;
+			if (sync) {
+				segment.channel.force(false);
+			}
+			from = to;
+		}
+		pending.clear();
+		pendingTopics.clear();
+	}
+
+	/**
+	 * @param topics selects the topics of the frames to read
+	 * @return the regions holding the committed frames from offset whose topic
+	 *         is selected, the consecutive ones in a single region, empty if
+	 *         there are none
+	 */
+	List<Region> regionsFrom(long offset, Predicate<String> topics) {
+		var regions = new ArrayList<Region>();
+		for (var segment : segments) {
+			if (offset >= segment.baseOffset + segment.count) {
+				continue;
+			}
+			var start = -1L; // start of the current region, -1 if none
+			for (var i = (int) Math.max(0, offset - segment.baseOffset); i < segment.count; i++) {
+				if (topics.test(segment.topics[i])) {
+					if (start == -1) {
+						start = segment.positions[i];
+					}
+				} else if (start != -1) {
+					regions.add(new Region(segment.channel, start, segment.positions[i]));
+					start = -1;
+				}
+			}
+			if (start != -1) {
+				regions.add(new Region(segment.channel, start, segment.size));
+			}
+		}
+		return regions;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			commit();
+		} finally {
+			for (var segment : segments) {
+				segment.channel.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,529 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import fr.upem.net.tcp.SocketProfile;
+
+/**
+ * Select loop shared by the nonblocking servers.
+ *
+ * The Reactor accepts the connections of its listening channels, creates a
+ * Connection for each of them with the factory of the listener, and drives
+ * them: each ready key gets at most readSpins reads and writeSpins writes
+ * before the next key is served, then its interest ops are recomputed once.
+ * It also closes the connections idle for longer than the idle timeout, lets
+ * the connections quiet for a quiet period release their memory with onQuiet,
+ * and runs the commands submitted by other threads with execute, the commands
+ * delayed with schedule and the tasks registered with atLoopEnd.
+ *
+ * Except execute, the methods must be called before launch or from the
+ * thread running launch.
+ */
+public class Reactor {
+
+	/**
+	 * Creates the Connection of a new channel, registered with key
+	 */
+	@FunctionalInterface
+	public interface ConnectionFactory {
+		Connection create(SelectionKey key) throws IOException;
+	}
+
+	/**
+	 * Work done at the end of each select loop
+	 */
+	@FunctionalInterface
+	public interface LoopTask {
+		void run() throws IOException;
+	}
+
+	/**
+	 * A command delayed by schedule
+	 */
+	static private class Timer {
+		private final long deadline; // in milliseconds, as System.currentTimeMillis
+		private final Runnable command;
+
+		private Timer(long deadline, Runnable command) {
+			this.deadline = deadline;
+			this.command = command;
+		}
+	}
+
+	public static class Builder {
+		private int readSpins = 16;
+		private int writeSpins = 16;
+		private long idleTimeout = 0;
+		private long quietPeriod = 0;
+		private int acceptBatch = 64;
+		private int backlog = SocketProfile.BACKLOG;
+		private SocketProfile socketProfile;
+		private SelectorTracer tracer;
+
+		/**
+		 * @param readSpins the maximum number of reads on a connection per selection
+		 */
+		public Builder setReadSpins(int readSpins) {
+			if (readSpins <= 0) {
+				throw new IllegalArgumentException("spins must be positive");
+			}
+			this.readSpins = readSpins;
+			return this;
+		}
+
+		/**
+		 * @param writeSpins the maximum number of writes on a connection per
+		 *                   selection
+		 */
+		public Builder setWriteSpins(int writeSpins) {
+			if (writeSpins <= 0) {
+				throw new IllegalArgumentException("spins must be positive");
+			}
+			this.writeSpins = writeSpins;
+			return this;
+		}
+
+		/**
+		 * @param idleTimeout the connections inactive for that long, in
+		 *                    milliseconds, are closed; 0 for no timeout
+		 */
+		public Builder setIdleTimeout(long idleTimeout) {
+			if (idleTimeout < 0) {
+				throw new IllegalArgumentException("negative timeout");
+			}
+			this.idleTimeout = idleTimeout;
+			return this;
+		}
+
+		/**
+		 * @param quietPeriod the connections inactive for that long, in
+		 *                    milliseconds, are told with onQuiet that they can
+		 *                    release their memory; 0 for never
+		 */
+		public Builder setQuietPeriod(long quietPeriod) {
+			if (quietPeriod < 0) {
+				throw new IllegalArgumentException("negative period");
+			}
+			this.quietPeriod = quietPeriod;
+			return this;
+		}
+
+		/**
+		 * @param acceptBatch the maximum number of connections accepted per
+		 *                    selection of a listening channel
+		 */
+		public Builder setAcceptBatch(int acceptBatch) {
+			if (acceptBatch <= 0) {
+				throw new IllegalArgumentException("batch must be positive");
+			}
+			this.acceptBatch = acceptBatch;
+			return this;
+		}
+
+		/**
+		 * @param backlog the number of pending connections the system keeps for
+		 *                each listening channel bound by listen, it may be capped
+		 *                by the system
+		 */
+		public Builder setBacklog(int backlog) {
+			if (backlog <= 0) {
+				throw new IllegalArgumentException("backlog must be positive");
+			}
+			this.backlog = backlog;
+			return this;
+		}
+
+		/**
+		 * @param socketProfile the options of the listening, accepted and
+		 *                      connected channels, by default the one given by
+		 *                      SocketProfile.fromSystemProperty
+		 */
+		public Builder setSocketProfile(SocketProfile socketProfile) {
+			this.socketProfile = Objects.requireNonNull(socketProfile);
+			return this;
+		}
+
+		/**
+		 * @param tracer the tracer of the select loop, by default the one given by
+		 *               SelectorTracer.fromSystemProperty
+		 */
+		public Builder setTracer(SelectorTracer tracer) {
+			this.tracer = Objects.requireNonNull(tracer);
+			return this;
+		}
+
+		public Reactor build() throws IOException {
+			return new Reactor(this);
+		}
+	}
+
+	static private Logger logger = Logger.getLogger(Reactor.class.getName());
+
+	private final Selector selector;
+	private final SelectorTracer tracer;
+	private final int readSpins;
+	private final int writeSpins;
+	private final long idleTimeout;
+	private final long quietPeriod;
+	private final int acceptBatch;
+	private final int backlog;
+	private final SocketProfile socketProfile;
+	private final Queue<Runnable> commands = new ConcurrentLinkedQueue<>();
+	private final ArrayList<ServerSocketChannel> listeners = new ArrayList<>();
+	private final ArrayList<LoopTask> loopTasks = new ArrayList<>();
+	private final PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong(timer -> timer.deadline));
+	private long nextTimeoutCheck;
+	private long nextQuietCheck;
+
+	private Reactor(Builder builder) throws IOException {
+		selector = Selector.open();
+		tracer = builder.tracer != null ? builder.tracer : SelectorTracer.fromSystemProperty();
+		readSpins = builder.readSpins;
+		writeSpins = builder.writeSpins;
+		idleTimeout = builder.idleTimeout;
+		quietPeriod = builder.quietPeriod;
+		acceptBatch = builder.acceptBatch;
+		backlog = builder.backlog;
+		socketProfile = builder.socketProfile != null ? builder.socketProfile : SocketProfile.fromSystemProperty();
+	}
+
+	/**
+	 * Binds a listening channel on port, factory creates the Connection of each
+	 * accepted channel
+	 *
+	 * @return the address the channel is bound to
+	 * @throws IOException
+	 */
+	public InetSocketAddress listen(int port, ConnectionFactory factory) throws IOException {
+		return listen(port, false, factory);
+	}
+
+	/**
+	 * Binds a listening channel on port, factory creates the Connection of each
+	 * accepted channel
+	 *
+	 * @param reusePort whether the port can be shared with other listening
+	 *                  channels, the system then spreads the connections among
+	 *                  them (SO_REUSEPORT, not supported by every system)
+	 * @return the address the channel is bound to
+	 * @throws IOException if reusePort is true and the system does not support
+	 *                     SO_REUSEPORT
+	 */
+	public InetSocketAddress listen(int port, boolean reusePort, ConnectionFactory factory) throws IOException {
+		var ssc = ServerSocketChannel.open();
+		try {
+			if (reusePort) {
+				if (!ssc.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+					throw new IOException("SO_REUSEPORT is not supported");
+				}
+				ssc.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			}
+			socketProfile.configure(ssc);
+			ssc.bind(new InetSocketAddress(port), backlog);
+			listen(ssc, factory);
+		} catch (IOException | RuntimeException e) {
+			ssc.close();
+			throw e;
+		}
+		return (InetSocketAddress) ssc.getLocalAddress();
+	}
+
+	/**
+	 * Accepts the connections of a bound listening channel, factory creates the
+	 * Connection of each accepted channel
+	 *
+	 * @throws IOException
+	 */
+	public void listen(ServerSocketChannel ssc, ConnectionFactory factory) throws IOException {
+		Objects.requireNonNull(factory);
+		ssc.configureBlocking(false);
+		ssc.register(selector, SelectionKey.OP_ACCEPT, factory);
+		listeners.add(ssc);
+	}
+
+	/**
+	 * Opens a channel to address, factory creates its Connection while the
+	 * connection is pending
+	 *
+	 * @return the Connection created by factory
+	 * @throws IOException
+	 */
+	public Connection connect(InetSocketAddress address, ConnectionFactory factory) throws IOException {
+		var sc = SocketChannel.open();
+		try {
+			socketProfile.configure(sc);
+			sc.configureBlocking(false);
+			var connected = sc.connect(address);
+			var key = sc.register(selector, 0);
+			var connection = factory.create(key);
+			key.attach(connection);
+			if (connected) {
+				connection.onConnected();
+			}
+			connection.updateInterestOps();
+			return connection;
+		} catch (IOException e) {
+			sc.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Runs command in the thread of the select loop, this method can be called
+	 * from any thread
+	 */
+	public void execute(Runnable command) {
+		commands.add(Objects.requireNonNull(command));
+		selector.wakeup();
+	}
+
+	/**
+	 * Runs command in the thread of the select loop, once delay milliseconds
+	 * have elapsed
+	 */
+	public void schedule(long delay, Runnable command) {
+		if (delay < 0) {
+			throw new IllegalArgumentException("negative delay");
+		}
+		timers.add(new Timer(System.currentTimeMillis() + delay, Objects.requireNonNull(command)));
+	}
+
+	/**
+	 * Runs task at the end of each select loop, once all the selected keys have
+	 * been processed. An IOException thrown by task stops launch.
+	 */
+	public void atLoopEnd(LoopTask task) {
+		loopTasks.add(Objects.requireNonNull(task));
+	}
+
+	/**
+	 * @return the number of open connections
+	 */
+	public int connectionCount() {
+		var count = 0;
+		for (var key : selector.keys()) {
+			if (key.attachment() instanceof Connection) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public void forEachConnection(Consumer<? super Connection> action) {
+		for (var key : selector.keys()) {
+			if (key.attachment() instanceof Connection) {
+				action.accept((Connection) key.attachment());
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting new connections, the current ones are still served
+	 */
+	public void closeListeners() {
+		for (var ssc : listeners) {
+			try {
+				ssc.close();
+			} catch (IOException e) {
+				// ignore exception
+			}
+		}
+		listeners.clear();
+	}
+
+	/**
+	 * Stops accepting new connections and closes all the current ones
+	 */
+	public void closeAll() {
+		closeListeners();
+		var connections = new ArrayList<Connection>();
+		forEachConnection(connections::add);
+		connections.forEach(Connection::close);
+	}
+
+	public void launch() throws IOException {
+		nextTimeoutCheck = System.currentTimeMillis() + idleTimeout;
+		nextQuietCheck = System.currentTimeMillis() + quietPeriod;
+		while (!Thread.interrupted()) {
+			if (SelectorTracer.ENABLED) {
+				tracer.beforeSelect(selector);
+			}
+			try {
+				var deadline = nextDeadline();
+				var selected = deadline == Long.MAX_VALUE ? selector.select(this::treatKey)
+						: selector.select(this::treatKey, Math.max(1, deadline - System.currentTimeMillis()));
+				if (SelectorTracer.ENABLED) {
+					tracer.afterSelect(selector, selected);
+				}
+			} catch (UncheckedIOException tunneled) {
+				throw tunneled.getCause();
+			}
+			processCommands();
+			runTimers();
+			if (idleTimeout != 0) {
+				checkTimeouts();
+			}
+			if (quietPeriod != 0) {
+				checkQuiet();
+			}
+			for (var task : loopTasks) {
+				task.run();
+			}
+		}
+	}
+
+	private void processCommands() {
+		for (var command = commands.poll(); command != null; command = commands.poll()) {
+			command.run();
+		}
+	}
+
+	/**
+	 * @return the time at which select must return, Long.MAX_VALUE if none
+	 */
+	private long nextDeadline() {
+		var deadline = idleTimeout == 0 ? Long.MAX_VALUE : nextTimeoutCheck;
+		if (quietPeriod != 0) {
+			deadline = Math.min(deadline, nextQuietCheck);
+		}
+		var timer = timers.peek();
+		return timer == null ? deadline : Math.min(deadline, timer.deadline);
+	}
+
+	/**
+	 * Runs the timers due, those scheduled meanwhile wait for the next loop
+	 */
+	private void runTimers() {
+		var now = System.currentTimeMillis();
+		var due = new ArrayList<Timer>();
+		while (!timers.isEmpty() && timers.peek().deadline <= now) {
+			due.add(timers.poll());
+		}
+		due.forEach(timer -> timer.command.run());
+	}
+
+	/**
+	 * Closes the connections without activity since the last check, checks are
+	 * idleTimeout apart
+	 */
+	private void checkTimeouts() {
+		var now = System.currentTimeMillis();
+		if (now < nextTimeoutCheck) {
+			return;
+		}
+		nextTimeoutCheck = now + idleTimeout;
+		var idle = new ArrayList<Connection>();
+		forEachConnection(connection -> {
+			if (!connection.activeSinceLastTimeoutCheck) {
+				idle.add(connection);
+			}
+			connection.activeSinceLastTimeoutCheck = false;
+		});
+		idle.forEach(Connection::close);
+	}
+
+	/**
+	 * Calls onQuiet on the connections without activity since the last check,
+	 * checks are quietPeriod apart
+	 */
+	private void checkQuiet() {
+		var now = System.currentTimeMillis();
+		if (now < nextQuietCheck) {
+			return;
+		}
+		nextQuietCheck = now + quietPeriod;
+		var quiet = new ArrayList<Connection>();
+		forEachConnection(connection -> {
+			if (!connection.activeSinceLastQuietCheck) {
+				quiet.add(connection);
+			}
+			connection.activeSinceLastQuietCheck = false;
+		});
+		for (var connection : quiet) {
+			if (!connection.isClosed()) {
+				connection.onQuiet();
+			}
+		}
+	}
+
+	private void treatKey(SelectionKey key) {
+		if (SelectorTracer.ENABLED) {
+			tracer.selectedKey(key);
+		}
+		try {
+			if (key.isValid() && key.isAcceptable()) {
+				doAccept(key);
+			}
+		} catch (IOException ioe) {
+			// lambda call in select requires to tunnel IOException
+			throw new UncheckedIOException(ioe);
+		}
+		if (!key.isValid() || key.isAcceptable()) {
+			return;
+		}
+		// the spins bound the work done for one key, the others are served before the next batch
+		var connection = (Connection) key.attachment();
+		connection.activeSinceLastTimeoutCheck = true;
+		connection.activeSinceLastQuietCheck = true;
+		try {
+			if (key.isConnectable()) {
+				connection.doConnect();
+			}
+			if (key.isWritable()) {
+				connection.doWrite(writeSpins);
+			}
+			if (key.isReadable()) {
+				connection.doRead(readSpins);
+			}
+			connection.updateInterestOps();
+		} catch (IOException e) {
+			logger.log(Level.INFO, "Connection closed due to IOException", e);
+			connection.close();
+		}
+	}
+
+	/**
+	 * Accepts up to acceptBatch pending connections, so that a burst of
+	 * connections does not wait for one selection each
+	 */
+	private void doAccept(SelectionKey key) throws IOException {
+		var ssc = (ServerSocketChannel) key.channel();
+		for (int i = 0; i < acceptBatch; i++) {
+			var sc = ssc.accept();
+			if (sc == null) {
+				return;
+			}
+			register(sc, (ConnectionFactory) key.attachment());
+		}
+	}
+
+	private void register(SocketChannel sc, ConnectionFactory factory) throws IOException {
+		try {
+			socketProfile.configure(sc);
+			sc.configureBlocking(false);
+			var scKey = sc.register(selector, SelectionKey.OP_READ);
+			var connection = factory.create(scKey);
+			scKey.attach(connection);
+			connection.updateInterestOps();
+		} catch (IOException e) {
+			logger.log(Level.INFO, "Connection refused due to IOException", e);
+			sc.close();
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import fr.upem.net.tcp.nonblocking.Reactor.ConnectionFactory;
+
+/**
+ * Group of Reactors, each one in its own thread, listening on the same ports.
+ *
+ * Each Reactor binds its own listening channel with SO_REUSEPORT, the system
+ * spreads the incoming connections among them: the accepts of a storm of
+ * connections run in parallel, without any lock between the Reactors. The
+ * connections stay in the Reactor that accepted them, so this only fits
+ * servers whose connections do not share state, or share it per Reactor.
+ * Where SO_REUSEPORT is not supported, only the first Reactor listens.
+ */
+public class ReactorGroup {
+
+	static private Logger logger = Logger.getLogger(ReactorGroup.class.getName());
+
+	private final List<Reactor> reactors;
+
+	/**
+	 * @param count   the number of Reactors
+	 * @param builder the settings of every Reactor
+	 * @throws IOException
+	 */
+	public ReactorGroup(int count, Reactor.Builder builder) throws IOException {
+		if (count <= 0) {
+			throw new IllegalArgumentException("count must be positive");
+		}
+		var reactors = new ArrayList<Reactor>(count);
+		for (int i = 0; i < count; i++) {
+			reactors.add(builder.build());
+		}
+		this.reactors = List.copyOf(reactors);
+	}
+
+	public List<Reactor> reactors() {
+		return reactors;
+	}
+
+	/**
+	 * @return true if the system lets several listening channels share a port
+	 * @throws IOException
+	 */
+	private static boolean isReusePortSupported() throws IOException {
+		try (var ssc = ServerSocketChannel.open()) {
+			return ssc.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		}
+	}
+
+	/**
+	 * Binds a listening channel on port in every Reactor, or in the first one
+	 * only if SO_REUSEPORT is not supported, factories gives the
+	 * ConnectionFactory of each Reactor
+	 *
+	 * @param port the port, 0 for a port chosen by the system, shared by all the
+	 *             Reactors
+	 * @return the address the channels are bound to
+	 * @throws IOException
+	 */
+	public InetSocketAddress listen(int port, Function<Reactor, ConnectionFactory> factories) throws IOException {
+		Objects.requireNonNull(factories);
+		var reusePort = reactors.size() > 1;
+		if (reusePort && !isReusePortSupported()) {
+			logger.warning("SO_REUSEPORT is not supported, only one Reactor accepts the connections");
+			reusePort = false;
+		}
+		var first = reactors.get(0);
+		var address = first.listen(port, reusePort, factories.apply(first));
+		if (!reusePort) {
+			return address;
+		}
+		for (var reactor : reactors.subList(1, reactors.size())) {
+			reactor.listen(address.getPort(), reusePort, factories.apply(reactor));
+		}
+		return address;
+	}
+
+	/**
+	 * Runs the first Reactor in the calling thread and the others in daemon
+	 * threads, until the calling thread is interrupted
+	 *
+	 * @throws IOException
+	 */
+	public void launch() throws IOException {
+		for (int i = 1; i < reactors.size(); i++) {
+			var reactor = reactors.get(i);
+			var thread = new Thread(() -> {
+				try {
+					reactor.launch();
+				} catch (IOException e) {
+					logger.log(Level.SEVERE, "Reactor stopped", e);
+				}
+			}, "reactor-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		reactors.get(0).launch();
+	}
+}
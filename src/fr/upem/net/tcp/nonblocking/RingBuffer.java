@@ -0,0 +1,125 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+
+/**
+ * Circular buffer of bytes in direct memory.
+ *
+ * The free space and the data are each made of at most two segments of the
+ * buffer, they are read and written with a single scattering read or
+ * gathering write. Unlike a ByteBuffer in write-mode, no compact is needed
+ * after a partial write, so the bytes are never moved once received.
+ */
+class RingBuffer {
+
+	private final ByteBuffer buffer;
+	private final ByteBuffer[] segments = new ByteBuffer[2]; // views on buffer, reused for each operation
+	private int head = 0; // index of the first byte of data
+	private int size = 0;
+
+	RingBuffer(int capacity) {
+		this(ByteBuffer.allocateDirect(capacity));
+	}
+
+	/**
+	 * @param buffer a direct buffer, empty, used by the ring from now
+	 */
+	RingBuffer(ByteBuffer buffer) {
+		this.buffer = buffer.clear();
+		segments[0] = buffer.duplicate();
+		segments[1] = buffer.duplicate();
+	}
+
+	int capacity() {
+		return buffer.capacity();
+	}
+
+	/**
+	 * @return the buffer of the ring, to give back to its pool once the ring is no
+	 *         longer used
+	 */
+	ByteBuffer buffer() {
+		return buffer;
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	boolean isFull() {
+		return size == buffer.capacity();
+	}
+
+	/**
+	 * Sets the segments on the region of length bytes starting at start
+	 */
+	private void setSegments(int start, int length) {
+		var capacity = buffer.capacity();
+		var firstEnd = Math.min(capacity, start + length);
+		segments[0].limit(firstEnd).position(start);
+		segments[1].limit(length - (firstEnd - start)).position(0);
+	}
+
+	int remaining() {
+		return buffer.capacity() - size;
+	}
+
+	/**
+	 * Moves the data to a new RingBuffer using buffer, this one is then empty
+	 *
+	 * @param buffer a direct buffer, empty, large enough for the data
+	 * @return the new RingBuffer
+	 */
+	RingBuffer moveTo(ByteBuffer buffer) {
+		if (size > buffer.capacity()) {
+			throw new IllegalArgumentException("the data does not fit");
+		}
+		var resized = new RingBuffer(buffer);
+		setSegments(head, size);
+		resized.buffer.put(segments[0]).put(segments[1]);
+		resized.size = size;
+		head = 0;
+		size = 0;
+		return resized;
+	}
+
+	/**
+	 * Reads from sc as many bytes as the free space can hold, with one read
+	 *
+	 * @return the number of bytes read, -1 if the end of stream is reached
+	 * @throws IOException
+	 */
+	long readFrom(ScatteringByteChannel sc) throws IOException {
+		var capacity = buffer.capacity();
+		setSegments((head + size) % capacity, capacity - size);
+		var read = sc.read(segments);
+		if (read > 0) {
+			size += read;
+		}
+		return read;
+	}
+
+	/**
+	 * Writes as many bytes of data as sc accepts, with one write
+	 *
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	long writeTo(GatheringByteChannel sc) throws IOException {
+		setSegments(head, size);
+		var written = sc.write(segments);
+		head = (head + (int) written) % buffer.capacity();
+		size -= written;
+		if (size == 0) {
+			head = 0; // keeps the next read in a single segment
+		}
+		return written;
+	}
+}
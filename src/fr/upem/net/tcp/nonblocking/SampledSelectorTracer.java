@@ -0,0 +1,48 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Objects;
+
+/**
+ * Forwards one select loop out of period to another tracer, the other loops
+ * cost a counter increment.
+ */
+class SampledSelectorTracer implements SelectorTracer {
+
+	private final SelectorTracer delegate;
+	private final int period;
+	private int loop = -1;
+	private boolean sampled;
+
+	SampledSelectorTracer(SelectorTracer delegate, int period) {
+		if (period <= 0) {
+			throw new IllegalArgumentException("period must be positive");
+		}
+		this.delegate = Objects.requireNonNull(delegate);
+		this.period = period;
+	}
+
+	@Override
+	public void beforeSelect(Selector selector) {
+		loop = (loop + 1) % period;
+		sampled = loop == 0;
+		if (sampled) {
+			delegate.beforeSelect(selector);
+		}
+	}
+
+	@Override
+	public void selectedKey(SelectionKey key) {
+		if (sampled) {
+			delegate.selectedKey(key);
+		}
+	}
+
+	@Override
+	public void afterSelect(Selector selector, int selected) {
+		if (sampled) {
+			delegate.afterSelect(selector, selected);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.PrintStream;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Observes the select loop of a server.
+ *
+ * The calls are guarded by the compile-time constant ENABLED: when it is set
+ * to false, javac removes them from the servers. Otherwise the tracer is chosen
+ * at startup with the system property fr.upem.net.tcp.trace :
+ * <ul>
+ * <li>none (default) : nothing is traced</li>
+ * <li>console : the keys are printed on System.out, from the select loop</li>
+ * <li>sampled:N : one select loop out of N is printed</li>
+ * <li>async[:capacity] : the events are stored in a ring buffer and printed by
+ * a background thread, they are dropped when the ring is full</li>
+ * </ul>
+ */
+public interface SelectorTracer {
+
+	static final boolean ENABLED = true;
+	static final String PROPERTY = "fr.upem.net.tcp.trace";
+
+	static final SelectorTracer NONE = new SelectorTracer() {
+		@Override
+		public void beforeSelect(Selector selector) {
+			// nothing to trace
+		}
+
+		@Override
+		public void selectedKey(SelectionKey key) {
+			// nothing to trace
+		}
+
+		@Override
+		public void afterSelect(Selector selector, int selected) {
+			// nothing to trace
+		}
+	};
+
+	/**
+	 * Called before each select, with the keys registered in selector
+	 */
+	void beforeSelect(Selector selector);
+
+	/**
+	 * Called for each selected key, before it is treated
+	 */
+	void selectedKey(SelectionKey key);
+
+	/**
+	 * Called after each select
+	 *
+	 * @param selected the number of keys treated by the select
+	 */
+	void afterSelect(Selector selector, int selected);
+
+	static SelectorTracer console(PrintStream out) {
+		return new ConsoleSelectorTracer(out);
+	}
+
+	/**
+	 * @param period one select loop out of period is traced by delegate
+	 */
+	static SelectorTracer sampled(SelectorTracer delegate, int period) {
+		return new SampledSelectorTracer(delegate, period);
+	}
+
+	/**
+	 * @param capacity the number of events kept while the background thread
+	 *                 prints them
+	 */
+	static SelectorTracer async(PrintStream out, int capacity) {
+		return new AsyncSelectorTracer(out, capacity);
+	}
+
+	/**
+	 * @return the tracer described by the system property fr.upem.net.tcp.trace
+	 */
+	static SelectorTracer fromSystemProperty() {
+		if (!ENABLED) {
+			return NONE;
+		}
+		var value = System.getProperty(PROPERTY, "none");
+		var parts = value.split(":", 2);
+		try {
+			switch (parts[0]) {
+			case "none":
+				return NONE;
+			case "console":
+				return console(System.out);
+			case "sampled":
+				return sampled(console(System.out), parts.length == 2 ? Integer.parseInt(parts[1]) : 1_000);
+			case "async":
+				return async(System.out, parts.length == 2 ? Integer.parseInt(parts[1]) : 64 * 1_024);
+			default:
+				throw new IllegalArgumentException("unknown tracer " + value);
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("invalid tracer " + value, e);
+		}
+	}
+}
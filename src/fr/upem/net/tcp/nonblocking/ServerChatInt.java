@@ -1,235 +1,105 @@
 package fr.upem.net.tcp.nonblocking;
 
 import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.*;
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.Queue;
-import java.util.Set;
-import java.util.logging.Level;
+import java.nio.channels.SelectionKey;
 import java.util.logging.Logger;
 
+/**
+ * Server broadcasting every int it receives to all its clients.
+ *
+ * The ints are published once in an IntBroadcastRing, each client only keeps
+ * its position in the ring. A client that falls more than RING_CAPACITY ints
+ * behind is disconnected.
+ */
 public class ServerChatInt {
 
-    static private class Context {
+    static private class Context extends BufferedConnection {
 
-        final private SelectionKey key;
-        final private SocketChannel sc;
-        final private ByteBuffer bbin = ByteBuffer.allocate(BUFFER_SIZE);
-        final private ByteBuffer bbout = ByteBuffer.allocate(BUFFER_SIZE);
-        final private Queue<Integer> queue = new LinkedList<>();
+        final private IntBroadcastRing.Cursor cursor;
         final private ServerChatInt server;
-        private boolean closed = false;
 
         private Context(ServerChatInt server, SelectionKey key){
-            this.key = key;
-            this.sc = (SocketChannel) key.channel();
+            super(key, BUFFER_SIZE, BUFFER_SIZE);
             this.server = server;
+            this.cursor = server.ring.subscribe(this::updateInterestOps);
         }
 
         /**
-         * Process the content of bbin
+         * Process the content of bbin, broadcasting every int it contains
          *
          * The convention is that bbin is in write-mode before the call
          * to process and after the call
          *
          */
-        private void processIn() {
-           if(bbin.position() >= Integer.BYTES && !closed) {
-        	   bbin.flip();        	   
+        @Override
+        protected void processIn() {
+           if(bbin.position() < Integer.BYTES) {
+        	   return;
+           }
+           bbin.flip();
+           while(bbin.remaining() >= Integer.BYTES) {
         	   server.broadcast(bbin.getInt());
-        	   bbin.compact();
            }
+           bbin.compact();
         }
 
         /**
-         * Add a message to the message queue, tries to fill bbOut and updateInterestOps
+         * Fill bbout from the ring, waits for the next broadcast once every int
+         * has been read
          *
-         * @param msg
          */
-        private void queueMessage(Integer msg) {
-        	if(bbout.remaining() < Integer.BYTES) {
-        		queue.add(msg);
-        	}else {
-        		bbout.putInt(msg);
+        @Override
+        protected void processOut() {
+        	if (cursor.isLost()) {
+        		return;
         	}
-        	updateInterestOps();
-        	
-        }
-
-        /**
-         * Try to fill bbout from the message queue
-         *
-         */
-        private void processOut() {
-        	if(bbout.remaining() >= Integer.BYTES) {
-        		var msg = queue.poll();
-        		if(msg != null) {
-        			bbout.putInt(msg);
-        		}
+        	cursor.drainTo(bbout);
+        	if (!cursor.hasNext()) {
+        		cursor.await();
         	}
         }
 
-        /**
-         * Update the interestOps of the key looking
-         * only at values of the boolean closed and
-         * of both ByteBuffers.
-         *
-         * The convention is that both buffers are in write-mode before the call
-         * to updateInterestOps and after the call.
-         * Also it is assumed that process has been be called just
-         * before updateInterestOps.
-         */
-
-        private void updateInterestOps() {
-        	int intrestOps = 0;
-        	if(bbin.hasRemaining() && !closed){
-        		intrestOps |= SelectionKey.OP_READ;
-        	}
-        	if((bbout.position() != 0 || !queue.isEmpty())  && bbout.hasRemaining()) {
-        		intrestOps |= SelectionKey.OP_WRITE;
-        	}
-        	if(intrestOps == 0) {
-        		silentlyClose();
-        	}else {
-        		key.interestOps(intrestOps);
-        	}
-        }
-
-        private void silentlyClose() {
-            try {
-                sc.close();
-            } catch (IOException e) {
-                // ignore exception
-            }
-        }
-
-        /**
-         * Performs the read action on sc
-         *
-         * The convention is that both buffers are in write-mode before the call
-         * to doRead and after the call
-         *
-         * @throws IOException
-         */
-        private void doRead() throws IOException {
-        	if(sc.read(bbin) == -1) {
-        		closed = true;
+        @Override
+        protected int interestOps() {
+        	if (cursor.isLost()) {
+        		logger.info("Slow consumer disconnected");
+        		return 0;
         	}
-        	processIn();
-        	//updateInterestOps();
+        	return super.interestOps();
         }
 
-        /**
-         * Performs the write action on sc
-         *
-         * The convention is that both buffers are in write-mode before the call
-         * to doWrite and after the call
-         *
-         * @throws IOException
-         */
-
-        private void doWrite() throws IOException {
-        	processOut();
-        	bbout.flip();
-        	sc.write(bbout);
-        	bbout.compact();
-        	updateInterestOps();
+        @Override
+        protected void onClose() {
+        	cursor.close();
         }
-
     }
 
     static private int BUFFER_SIZE = 1_024;
+    static private int RING_CAPACITY = 64 * 1_024;
     static private Logger logger = Logger.getLogger(ServerChatInt.class.getName());
 
-    private final ServerSocketChannel serverSocketChannel;
-    private final Selector selector;
+    private final Reactor reactor;
+    private final IntBroadcastRing ring = new IntBroadcastRing(RING_CAPACITY);
 
     public ServerChatInt(int port) throws IOException {
-        serverSocketChannel = ServerSocketChannel.open();
-        serverSocketChannel.bind(new InetSocketAddress(port));
-        selector = Selector.open();
-    }
-    
-    private void doAccept(SelectionKey key) throws IOException {
-		var ssc = (ServerSocketChannel) key.channel();
-		var sc = ssc.accept();
-		
-		if (sc != null) {
-			sc.configureBlocking(false);
-			var scKey = sc.register(selector,SelectionKey.OP_READ );
-			scKey.attach(new Context(this, scKey));
-		}
+        reactor = new Reactor.Builder().build();
+        reactor.listen(port, key -> new Context(this, key));
     }
 
     /**
-     * Add a message to all connected clients queue
+     * Publish a message to all connected clients, the waiting ones are notified
      *
      * @param msg
      */
-    private void broadcast(Integer msg) {
-    	for (var key : selector.keys()) {
-    		var clientContext = (Context) key.attachment();
-    		if(clientContext != null) { //channel of accept op
-    			clientContext.queueMessage(msg);
-    		}
-    	}
+    private void broadcast(int msg) {
+    	ring.publish(msg);
     }
     
     
     public void launch() throws IOException {
-		serverSocketChannel.configureBlocking(false);
-		serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
-		while(!Thread.interrupted()) {
-			printKeys(); // for debug
-			System.out.println("Starting select");
-			try {
-				selector.select(this::treatKey);
-			} catch (UncheckedIOException tunneled) {
-				throw tunneled.getCause();
-			}
-			System.out.println("Select finished");
-		}
+        reactor.launch();
     }
 
-	private void treatKey(SelectionKey key) {
-		printSelectedKey(key); // for debug
-		try {
-			if (key.isValid() && key.isAcceptable()) {
-				doAccept(key);
-			}
-		} catch(IOException ioe) {
-			// lambda call in select requires to tunnel IOException
-			throw new UncheckedIOException(ioe);
-		}
-		try {
-			if (key.isValid() && key.isWritable()) {
-				((Context) key.attachment()).doWrite();
-			}
-			if (key.isValid() && key.isReadable()) {
-				((Context) key.attachment()).doRead();
-			}
-		} catch (IOException e) {
-			logger.log(Level.INFO,"Connection closed with client due to IOException",e);
-			silentlyClose(key);
-		}
-	}
-
-
-    private void silentlyClose(SelectionKey key) {
-        Channel sc = (Channel) key.channel();
-        try {
-            sc.close();
-        } catch (IOException e) {
-            // ignore exception
-        }
-    }
-
-
-
     public static void main(String[] args) throws NumberFormatException, IOException {
         if (args.length!=1){
             usage();
@@ -239,69 +109,6 @@ public class ServerChatInt {
     }
 
     private static void usage(){
-        System.out.println("Usage : ServerSumBetter port");
+        System.out.println("Usage : ServerChatInt port");
     }
-
-	/***
-	 *  Theses methods are here to help understanding the behavior of the selector
-	 ***/
-
-	private String interestOpsToString(SelectionKey key){
-		if (!key.isValid()) {
-			return "CANCELLED";
-		}
-		int interestOps = key.interestOps();
-		ArrayList<String> list = new ArrayList<>();
-		if ((interestOps&SelectionKey.OP_ACCEPT)!=0) list.add("OP_ACCEPT");
-		if ((interestOps&SelectionKey.OP_READ)!=0) list.add("OP_READ");
-		if ((interestOps&SelectionKey.OP_WRITE)!=0) list.add("OP_WRITE");
-		return String.join("|",list);
-	}
-
-	public void printKeys() {
-		Set<SelectionKey> selectionKeySet = selector.keys();
-		if (selectionKeySet.isEmpty()) {
-			System.out.println("The selector contains no key : this should not happen!");
-			return;
-		}
-		System.out.println("The selector contains:");
-		for (SelectionKey key : selectionKeySet){
-			SelectableChannel channel = key.channel();
-			if (channel instanceof ServerSocketChannel) {
-				System.out.println("\tKey for ServerSocketChannel : "+ interestOpsToString(key));
-			} else {
-				SocketChannel sc = (SocketChannel) channel;
-				System.out.println("\tKey for Client "+ remoteAddressToString(sc) +" : "+ interestOpsToString(key));
-			}
-		}
-	}
-
-	private String remoteAddressToString(SocketChannel sc) {
-		try {
-			return sc.getRemoteAddress().toString();
-		} catch (IOException e){
-			return "???";
-		}
-	}
-
-	public void printSelectedKey(SelectionKey key) {
-		SelectableChannel channel = key.channel();
-		if (channel instanceof ServerSocketChannel) {
-			System.out.println("\tServerSocketChannel can perform : " + possibleActionsToString(key));
-		} else {
-			SocketChannel sc = (SocketChannel) channel;
-			System.out.println("\tClient " + remoteAddressToString(sc) + " can perform : " + possibleActionsToString(key));
-		}
-	}
-
-	private String possibleActionsToString(SelectionKey key) {
-		if (!key.isValid()) {
-			return "CANCELLED";
-		}
-		ArrayList<String> list = new ArrayList<>();
-		if (key.isAcceptable()) list.add("ACCEPT");
-		if (key.isReadable()) list.add("READ");
-		if (key.isWritable()) list.add("WRITE");
-		return String.join(" and ",list);
-	}
 }
@@ -1,332 +1,718 @@
 package fr.upem.net.tcp.nonblocking;
 
 import java.io.IOException;
-import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channel;
-import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.ServerSocketChannel;
-import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import fr.upem.net.tcp.nonblocking.Reader.ProcessStatus;
 
 
+/**
+ * Chat server routing each message to its audience.
+ *
+ * The text of a message selects its recipients :
+ * <ul>
+ * <li>/join room and /leave room subscribe to and unsubscribe from a room</li>
+ * <li>#room text is sent to the members of room</li>
+ * <li>@login text is sent to the client using login, and to its sender</li>
+ * <li>any other text is sent to the default room, that every client joins</li>
+ * </ul>
+ * A client is known by the login of its first message. A message to a room is
+ * published once in the BroadcastRing of the room, where each member reads it
+ * with its own cursor; a member too slow to keep up is disconnected.
+ *
+ * Several servers can be federated in a full mesh : each one listens on a peer
+ * port and connects to the peer ports of the others. The peer links carry the
+ * same frames as the clients, the login being prefixed by the route of the
+ * message (origin:sequence:login). A server forwards to its peers only the
+ * messages of its own clients, each server delivers them to its own
+ * subscribers, so a message reaches every subscriber exactly once and never
+ * loops. The messages queued on a link during a select loop are written
+ * together. A server opens its links to the peer ports it is given again with
+ * an exponential backoff, whether the peer is not started yet or the link is
+ * lost; the messages sent while a link is down are not forwarded on it.
+ *
+ * The messages sent to rooms can be stored in a MessageLog, written once per
+ * select loop. A client gets the offset of the next message with /offset, and
+ * the stored messages from an offset with /replay offset, only those of the
+ * rooms it has joined.
+ */
 public class ServerChaton {
-	static private class Context {
-
-		final private SelectionKey key;
-		final private SocketChannel sc;
-		final private ByteBuffer bbin = ByteBuffer.allocate(BUFFER_SIZE);
-		final private ByteBuffer bbout = ByteBuffer.allocate(BUFFER_SIZE);
-		static private Charset UTF8 = Charset.forName("UTF8");
-		final private Queue<Message> queue = new LinkedList<>();
-		final private ServerChaton server;
+
+	/**
+	 * A connection exchanging Message frames
+	 */
+	static private abstract class FrameConnection extends BufferedConnection {
+
+		final protected Queue<Object> queue = new LinkedList<>(); // frames in read-mode, shared by the contexts, or MessageLog.Region
+		final protected ServerChaton server;
+		private ByteBuffer frame; // frame being copied in bbout, null if none
+		private int framePosition; // index in frame of the next byte to copy
 		final private MessageReader messageReader = new MessageReader();
-		private boolean closed = false;
 
-		private ProcessStatus processing = ProcessStatus.REFILL;
-		
-		private Context(ServerChaton server, SelectionKey key) {
-			this.key = key;
-			this.sc = (SocketChannel) key.channel();
+		private FrameConnection(ServerChaton server, SelectionKey key, int bufferSize) {
+			super(key, bufferSize, bufferSize);
 			this.server = server;
 		}
 
+		abstract void onMessage(Message msg);
+
 		/**
-		 * Process the content of bbin
+		 * Process the content of bbin, handling every complete message
 		 *
 		 * The convention is that bbin is in write-mode before the call to process and
 		 * after the call
 		 *
 		 */
-		private void processIn() {
-			if(closed) {
-				return;
-			}
-			processing = messageReader.process(bbin);
-			if( processing == ProcessStatus.DONE) {
-				server.broadcast(messageReader.get());
-				messageReader.reset();
-			}else if( processing == ProcessStatus.REFILL) {
-				return;
-			}else {
-				silentlyClose();
-				return;
+		@Override
+		protected void processIn() {
+			while (!isClosed()) {
+				var processing = messageReader.process(bbin);
+				if (processing == ProcessStatus.DONE) {
+					onMessage(messageReader.get());
+					messageReader.reset();
+				} else if (processing == ProcessStatus.REFILL) {
+					return;
+				} else {
+					logger.info("Invalid message, connection closed");
+					close();
+					return;
+				}
 			}
 		}
 
 		/**
-		 * Add a message to the message queue, tries to fill bbOut and updateInterestOps
+		 * Add a frame to the message queue and updateInterestOps
 		 *
-		 * @param msg
+		 * @param frame in read-mode, it is not modified
 		 */
-		private void queueMessage(Message msg) {	
-
-			queue.add(msg);
+		void queueMessage(ByteBuffer frame) {
+			queue.add(frame);
+			updateInterestOps();
+		}
 
-			//processOut();
+		/**
+		 * Add a region of the message log to the queue, it is sent after the frames
+		 * already queued
+		 */
+		void queueRegion(MessageLog.Region region) {
+			queue.add(region);
 			updateInterestOps();
+		}
 
+		/**
+		 * @return the next frame to send, null if there is none or if a region of
+		 *         the message log must be sent first
+		 */
+		ByteBuffer nextFrame() {
+			if (queue.peek() instanceof ByteBuffer) {
+				return (ByteBuffer) queue.poll();
+			}
+			return null;
 		}
 
 		/**
-		 * Try to fill bbout from the message queue
+		 * Fill bbout with the next frames, a frame larger than the room left in bbout
+		 * is copied in several times. The frames are shared, they are copied from
+		 * their array without being modified. It stops at a region of the message
+		 * log, sent by doWrite once bbout is flushed.
 		 *
 		 */
-		private void processOut() {
-			
-			if (bbout.remaining() >= queue.peek().size()) {
-				var msg = queue.poll();
-				if (msg != null) {
-					bbout.putInt(msg.getLogin().length());
-					bbout.put(UTF8.encode(msg.getLogin()));
-					bbout.putInt(msg.getMessage().length());
-					bbout.put(UTF8.encode(msg.getMessage()));
+		@Override
+		protected void processOut() {
+			while (bbout.hasRemaining()) {
+				if (frame == null) {
+					frame = nextFrame();
+					if (frame == null) {
+						return;
+					}
+					framePosition = frame.position();
+				}
+				var length = Math.min(bbout.remaining(), frame.limit() - framePosition);
+				bbout.put(frame.array(), frame.arrayOffset() + framePosition, length);
+				framePosition += length;
+				if (framePosition == frame.limit()) {
+					frame = null;
 				}
 			}
 		}
 
 		/**
-		 * Update the interestOps of the key looking only at values of the boolean
-		 * closed and of both ByteBuffers.
+		 * Performs up to spins writes on sc, the regions of the message log are
+		 * sent straight from their file once bbout is flushed
 		 *
-		 * The convention is that both buffers are in write-mode before the call to
-		 * updateInterestOps and after the call. Also it is assumed that process has
-		 * been be called just before updateInterestOps.
+		 * @throws IOException
 		 */
+		@Override
+		protected void doWrite(int spins) throws IOException {
+			for (int i = 0; i < spins && !isClosed(); i++) {
+				processOut();
+				if (bbout.position() != 0) {
+					bbout.flip();
+					var written = sc.write(bbout);
+					bbout.compact();
+					if (written == 0) {
+						return;
+					}
+					processIn();
+				} else if (frame == null && queue.peek() instanceof MessageLog.Region) {
+					var region = (MessageLog.Region) queue.peek();
+					if (region.transferTo(sc) == 0) {
+						return;
+					}
+					if (region.isDone()) {
+						queue.poll();
+					}
+				} else {
+					return;
+				}
+			}
+		}
 
-		private void updateInterestOps() {
-			int intrestOps = 0;
-			if (bbin.hasRemaining() && !closed) {
-				intrestOps |= SelectionKey.OP_READ;
+		@Override
+		protected int interestOps() {
+			var interestOps = super.interestOps();
+			if (queue.peek() instanceof MessageLog.Region) {
+				interestOps |= SelectionKey.OP_WRITE;
 			}
-			if ((bbout.position() != 0 || !queue.isEmpty())  && bbout.hasRemaining()){
-				intrestOps |= SelectionKey.OP_WRITE;
+			return interestOps;
+		}
+	}
+
+	/**
+	 * Connection of a client, it reads the messages of its rooms from their rings
+	 */
+	static private class Context extends FrameConnection {
+
+		final private HashMap<String, BroadcastRing<ByteBuffer>.Cursor> rooms = new HashMap<>();
+		final private ArrayList<BroadcastRing<ByteBuffer>.Cursor> cursors = new ArrayList<>(); // those of rooms, read in turn
+		private int turn = 0; // index in cursors of the room read first by the next call to nextFrame
+		private String login; // login of the first message, null before
+		private boolean slow = false; // a room ring has overwritten frames not sent yet
+
+		private Context(ServerChaton server, SelectionKey key) {
+			super(server, key, BUFFER_SIZE);
+		}
+
+		/**
+		 * Takes the frames of the queue first, then those of the rooms, one frame
+		 * of each room in turn so that a busy room does not hold back the others.
+		 * Waits for the next frame of each room once all of them have been sent.
+		 */
+		@Override
+		ByteBuffer nextFrame() {
+			if (!queue.isEmpty()) {
+				return super.nextFrame();
 			}
-			if (intrestOps == 0) {
-				silentlyClose();
-			} else {
-				key.interestOps(intrestOps);
+			var size = cursors.size();
+			for (int i = 0; i < size; i++) {
+				var index = (turn + i) % size;
+				var cursor = cursors.get(index);
+				if (cursor.isLost()) {
+					slow = true;
+					return null;
+				}
+				if (cursor.hasNext()) {
+					turn = index + 1;
+					return cursor.next();
+				}
 			}
+			for (var cursor : cursors) {
+				cursor.await();
+			}
+			return null;
 		}
 
-		private void silentlyClose() {
-			try {
-				sc.close();
-			} catch (IOException e) {
-				// ignore exception
+		@Override
+		protected int interestOps() {
+			var interestOps = super.interestOps();
+			if (slow) {
+				logger.info("Slow consumer disconnected");
+				return 0;
 			}
+			return interestOps;
+		}
+
+		@Override
+		void onMessage(Message msg) {
+			server.route(this, msg);
 		}
 
 		/**
-		 * Performs the read action on sc
-		 *
-		 * The convention is that both buffers are in write-mode before the call to
-		 * doRead and after the call
-		 *
-		 * @throws IOException
+		 * Removes the regions of the message log from the queue, once the log is
+		 * closed. The connection is closed if a region is being sent, its last
+		 * frame cannot be completed.
 		 */
-		private void doRead() throws IOException {
-			if (sc.read(bbin) == -1) {
-				closed = true;
+		void dropRegions() {
+			var head = queue.peek();
+			if (head instanceof MessageLog.Region && ((MessageLog.Region) head).isStarted()) {
+				logger.info("Replay interrupted, connection closed");
+				close();
+				return;
+			}
+			if (queue.removeIf(element -> element instanceof MessageLog.Region)) {
+				notice(this, "replay failed");
 			}
-			
-			processIn();
-			updateInterestOps();
 		}
 
+		@Override
+		protected void onClose() {
+			server.unregister(this);
+		}
+	}
+
+	/**
+	 * Link to another server of the federation
+	 */
+	static private class PeerContext extends FrameConnection {
+		private final InetSocketAddress address; // null if the link was opened by the peer
+		private long backoff; // delay before the next attempt if this one fails
+
 		/**
-		 * Performs the write action on sc
-		 *
-		 * The convention is that both buffers are in write-mode before the call to
-		 * doWrite and after the call
-		 *
-		 * @throws IOException
+		 * Link accepted on the peer port
 		 */
+		private PeerContext(ServerChaton server, SelectionKey key) {
+			super(server, key, PEER_BUFFER_SIZE);
+			address = null;
+			server.peers.add(this);
+		}
 
-		private void doWrite() throws IOException {
-			processOut();
-			bbout.flip();
-			sc.write(bbout);
-			bbout.compact();
-			updateInterestOps();
+		/**
+		 * Link opened to address, it forwards messages once connected
+		 */
+		private PeerContext(ServerChaton server, SelectionKey key, InetSocketAddress address, long backoff) {
+			super(server, key, PEER_BUFFER_SIZE);
+			this.address = address;
+			this.backoff = backoff;
+		}
+
+		@Override
+		protected void onConnected() {
+			logger.info("Peer link to " + address + " opened");
+			backoff = INITIAL_BACKOFF;
+			server.peers.add(this);
+		}
+
+		@Override
+		void onMessage(Message msg) {
+			server.receiveFromPeer(this, msg);
+		}
+
+		@Override
+		protected void onClose() {
+			logger.info("Peer link closed");
+			server.peers.remove(this);
+			if (address != null) {
+				server.reconnectPeer(address, backoff);
+			}
 		}
+	}
 
+	/**
+	 * A room, its messages are published once in its ring for all its members
+	 */
+	static private class Room {
+		final private BroadcastRing<ByteBuffer> ring = new BroadcastRing<>(ROOM_CAPACITY);
+		private int members = 0;
 	}
 
 	static private int BUFFER_SIZE = 1_024;
+	static private int PEER_BUFFER_SIZE = 64 * 1_024;
+	static private int ROOM_CAPACITY = 64 * 1_024; // frames, a member further behind is disconnected
+	static private String DEFAULT_ROOM = "general";
+	static private String SERVER_LOGIN = "server";
+	static private int MAX_ROUTE_SIZE = 16 + 1 + 19 + 1; // bytes of origin:sequence: in the login of a peer frame
+	static private int MAX_LOGIN_SIZE = StringReader.MAX_SIZE - MAX_ROUTE_SIZE; // bytes, so that the route fits
+	static private long INITIAL_BACKOFF = 100; // milliseconds
+	static private long MAX_BACKOFF = 30_000;
 	static private Logger logger = Logger.getLogger(ServerChaton.class.getName());
 
-	private final ServerSocketChannel serverSocketChannel;
-	private final Selector selector;
+	private final Reactor reactor;
+	private final int port;
+	private final HashMap<String, Room> rooms = new HashMap<>();
+	private final HashMap<String, Context> logins = new HashMap<>();
+	private final HashSet<PeerContext> peers = new HashSet<>();
+	private final HashMap<String, Long> lastSequences = new HashMap<>(); // by origin, to drop duplicates
+	private final String nodeId = Long.toHexString(new Random().nextLong());
+	private long sequence = 0;
+	private MessageLog log; // null if the messages are not stored, or no longer after a write failure
 
 	public ServerChaton(int port) throws IOException {
-		serverSocketChannel = ServerSocketChannel.open();
-		serverSocketChannel.bind(new InetSocketAddress(port));
-		selector = Selector.open();
+		this(port, -1, List.of(), null);
+	}
+
+	public ServerChaton(int port, int peerPort, List<InetSocketAddress> peers) throws IOException {
+		this(port, peerPort, peers, null);
+	}
+
+	/**
+	 * Creates a federated server
+	 *
+	 * @param peerPort the port on which the other servers connect, -1 for none
+	 * @param peers    the peer ports of the servers to connect to, each pair of
+	 *                 servers must be linked once
+	 * @param logDirectory the directory of the message log, null for none
+	 * @throws IOException
+	 */
+	public ServerChaton(int port, int peerPort, List<InetSocketAddress> peers, Path logDirectory)
+			throws IOException {
+		reactor = new Reactor.Builder().build();
+		if (logDirectory != null) {
+			log = new MessageLog(logDirectory, msg -> roomOf(msg.getMessage()));
+			reactor.atLoopEnd(this::commitLog);
+		} else {
+			log = null;
+		}
+		this.port = reactor.listen(port, key -> {
+			var context = new Context(this, key);
+			join(context, DEFAULT_ROOM);
+			return context;
+		}).getPort();
+		if (peerPort != -1) {
+			reactor.listen(peerPort, key -> new PeerContext(this, key));
+		}
+		for (var peer : peers) {
+			connectPeer(peer, INITIAL_BACKOFF);
+		}
+	}
+
+	private void connectPeer(InetSocketAddress address, long backoff) {
+		try {
+			reactor.connect(address, key -> new PeerContext(this, key, address, backoff));
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Cannot connect to peer " + address, e);
+			reconnectPeer(address, backoff);
+		}
+	}
+
+	/**
+	 * Connects to address again after a delay between backoff/2 and backoff, the
+	 * backoff doubling at each failure up to MAX_BACKOFF
+	 */
+	private void reconnectPeer(InetSocketAddress address, long backoff) {
+		var delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+		reactor.schedule(delay, () -> connectPeer(address, Math.min(backoff * 2, MAX_BACKOFF)));
+	}
+
+	private void join(Context context, String name) {
+		if (context.rooms.containsKey(name)) {
+			return;
+		}
+		var room = rooms.computeIfAbsent(name, __ -> new Room());
+		room.members++;
+		var cursor = room.ring.subscribe(context::updateInterestOps);
+		context.rooms.put(name, cursor);
+		context.cursors.add(cursor);
+		context.updateInterestOps();
 	}
 
-	private void doAccept(SelectionKey key) throws IOException {
-		var ssc = (ServerSocketChannel) key.channel();
-		var sc = ssc.accept();
+	private void leave(Context context, String name) {
+		var cursor = context.rooms.remove(name);
+		if (cursor == null) {
+			return;
+		}
+		context.cursors.remove(cursor);
+		cursor.close();
+		var room = rooms.get(name);
+		if (--room.members == 0) {
+			rooms.remove(name);
+		}
+	}
 
-		if (sc != null) {
-			sc.configureBlocking(false);
-			var scKey = sc.register(selector, SelectionKey.OP_READ);
-			scKey.attach(new Context(this, scKey));
+	/**
+	 * Removes a closed context from the indexes
+	 */
+	private void unregister(Context context) {
+		for (var room : context.rooms.keySet().toArray(new String[0])) {
+			leave(context, room);
+		}
+		if (context.login != null && logins.get(context.login) == context) {
+			logins.remove(context.login);
 		}
 	}
 
 	/**
-	 * Add a message to all connected clients queue
+	 * Handles msg from the client of context : a subscription is local, any other
+	 * message is delivered to the local recipients and forwarded to the peers.
+	 * A message whose login leaves no room for the route is refused, the peers
+	 * would close the link on it.
 	 *
 	 * @param msg
 	 */
-	private void broadcast(Message msg) {
-		for (var key : selector.keys()) {
-			var clientContext = (Context) key.attachment();
-			if (clientContext != null) { // channel of accept op
-				clientContext.queueMessage(msg);
+	private void route(Context context, Message msg) {
+		if (msg.getLogin().getBytes(StandardCharsets.UTF_8).length > MAX_LOGIN_SIZE) {
+			notice(context, "login longer than " + MAX_LOGIN_SIZE + " bytes");
+			return;
+		}
+		if (context.login == null) {
+			context.login = msg.getLogin();
+			logins.putIfAbsent(context.login, context);
+		}
+		var text = msg.getMessage();
+		if (text.startsWith("/join ") || text.startsWith("/leave ")) {
+			var room = text.substring(text.indexOf(' ') + 1).strip();
+			if (room.isEmpty() || room.contains(" ")) {
+				notice(context, "invalid room name " + room);
+			} else if (text.startsWith("/join ")) {
+				join(context, room);
+			} else {
+				leave(context, room);
 			}
+			return;
 		}
-	}
-
-	public void launch() throws IOException {
-		serverSocketChannel.configureBlocking(false);
-		serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
-		while (!Thread.interrupted()) {
-			printKeys(); // for debug
-			System.out.println("Starting select");
-			try {
-				selector.select(this::treatKey);
-			} catch (UncheckedIOException tunneled) {
-				throw tunneled.getCause();
+		if (text.equals("/offset") || text.startsWith("/replay ")) {
+			replay(context, text);
+			return;
+		}
+		deliver(context, msg);
+		if (!peers.isEmpty()) {
+			var routed = new Message.Builder().setLogin(nodeId + ":" + (++sequence) + ":" + msg.getLogin())
+					.setMessage(text).build().encode();
+			for (var peer : peers) {
+				peer.queueMessage(routed);
 			}
-			System.out.println("Select finished");
 		}
 	}
 
-	private void treatKey(SelectionKey key) {
-		printSelectedKey(key); // for debug
+	/**
+	 * Answers /offset with the offset of the next message stored, and /replay
+	 * offset with the messages stored from offset in the rooms of context
+	 */
+	private void replay(Context context, String text) {
+		if (log == null) {
+			notice(context, "messages are not stored");
+			return;
+		}
+		if (text.equals("/offset")) {
+			notice(context, "offset " + log.nextOffset());
+			return;
+		}
+		long offset;
 		try {
-			if (key.isValid() && key.isAcceptable()) {
-				doAccept(key);
-			}
-		} catch (IOException ioe) {
-			// lambda call in select requires to tunnel IOException
-			throw new UncheckedIOException(ioe);
+			offset = Long.parseLong(text.substring("/replay ".length()).strip());
+		} catch (NumberFormatException e) {
+			notice(context, "invalid offset " + text.substring("/replay ".length()));
+			return;
+		}
+		if (!commitLog()) { // the messages of the current loop are replayed too
+			notice(context, "replay failed");
+			return;
+		}
+		for (var region : log.regionsFrom(Math.max(0, offset), context.rooms::containsKey)) {
+			context.queueRegion(region);
+		}
+	}
+
+	/**
+	 * Writes the messages stored since the last commit. A write failure, such as
+	 * a full disk, stops the storage of the messages but not the server.
+	 *
+	 * @return true if the messages are written
+	 */
+	private boolean commitLog() {
+		if (log == null) {
+			return false;
 		}
 		try {
-			if (key.isValid() && key.isWritable()) {
-				((Context) key.attachment()).doWrite();
-			}
-			if (key.isValid() && key.isReadable()) {
-				((Context) key.attachment()).doRead();
-			}
+			log.commit();
+			return true;
 		} catch (IOException e) {
-			logger.log(Level.INFO, "Connection closed with client due to IOException", e);
-			silentlyClose(key);
+			logger.log(Level.SEVERE, "Cannot write the message log, messages are no longer stored", e);
+			closeLog();
+			return false;
 		}
 	}
 
-	private void silentlyClose(SelectionKey key) {
-		Channel sc = (Channel) key.channel();
+	/**
+	 * Closes the message log, the regions queued by /replay are dropped since
+	 * their files are closed
+	 */
+	private void closeLog() {
 		try {
-			sc.close();
-		} catch (IOException e) {
-			// ignore exception
+			log.close();
+		} catch (IOException ignored) {
+			// the frames not written are lost
 		}
+		log = null;
+		var contexts = new ArrayList<Context>();
+		reactor.forEachConnection(connection -> {
+			if (connection instanceof Context) {
+				contexts.add((Context) connection);
+			}
+		});
+		contexts.forEach(Context::dropRegions);
 	}
 
-	public static void main(String[] args) throws NumberFormatException, IOException {
-		if (args.length != 1) {
-			usage();
+	/**
+	 * Delivers to the local recipients a message forwarded by its origin server,
+	 * it is not forwarded again
+	 */
+	private void receiveFromPeer(PeerContext peer, Message routed) {
+		var route = routed.getLogin().split(":", 3);
+		if (route.length != 3) {
+			logger.info("Message without route, peer link closed");
+			peer.close();
 			return;
 		}
-		new ServerChaton(Integer.parseInt(args[0])).launch();
+		long seq;
+		try {
+			seq = Long.parseLong(route[1]);
+		} catch (NumberFormatException e) {
+			logger.log(Level.INFO, "Invalid route, peer link closed", e);
+			peer.close();
+			return;
+		}
+		var last = lastSequences.getOrDefault(route[0], 0L);
+		if (seq <= last) {
+			return; // already delivered
+		}
+		lastSequences.put(route[0], seq);
+		deliver(null, new Message.Builder().setLogin(route[2]).setMessage(routed.getMessage()).build());
 	}
 
-	private static void usage() {
-		System.out.println("Usage : ServerChaton port");
+	/**
+	 * Sends msg to its local recipients, and stores it in the log if it is
+	 * published in a room. The notices about unknown rooms and logins are only sent by a
+	 * server without peers, the recipients may be connected to another server.
+	 *
+	 * @param sender the context of the sender, null if it is connected to another
+	 *               server
+	 */
+	private void deliver(Context sender, Message msg) {
+		var text = msg.getMessage();
+		var alone = sender != null && peers.isEmpty();
+		if (text.startsWith("#")) {
+			var room = rooms.get(firstWord(text));
+			if (room != null) {
+				room.ring.publish(store(msg, firstWord(text)));
+			} else if (alone) {
+				notice(sender, "unknown room " + firstWord(text));
+			}
+		} else if (text.startsWith("@")) {
+			var recipient = logins.get(firstWord(text));
+			if (recipient == null) {
+				if (alone) {
+					notice(sender, "unknown login " + firstWord(text));
+				} else if (sender != null) {
+					send(Set.of(sender), msg.encode());
+				}
+			} else {
+				send(sender == null || recipient == sender ? Set.of(recipient) : Set.of(recipient, sender),
+						msg.encode());
+			}
+		} else {
+			var room = rooms.get(DEFAULT_ROOM);
+			if (room != null) {
+				room.ring.publish(store(msg, DEFAULT_ROOM));
+			}
+		}
+	}
+
+	/**
+	 * @return the frame of msg, appended to the log of room if there is one
+	 */
+	private ByteBuffer store(Message msg, String room) {
+		var frame = msg.encode();
+		if (log != null) {
+			log.append(frame, room);
+		}
+		return frame;
 	}
 
-	/***
-	 * Theses methods are here to help understanding the behavior of the selector
-	 ***/
-
-	private String interestOpsToString(SelectionKey key) {
-		if (!key.isValid()) {
-			return "CANCELLED";
-		}
-		int interestOps = key.interestOps();
-		ArrayList<String> list = new ArrayList<>();
-		if ((interestOps & SelectionKey.OP_ACCEPT) != 0)
-			list.add("OP_ACCEPT");
-		if ((interestOps & SelectionKey.OP_READ) != 0)
-			list.add("OP_READ");
-		if ((interestOps & SelectionKey.OP_WRITE) != 0)
-			list.add("OP_WRITE");
-		return String.join("|", list);
+	/**
+	 * @return the room of a message sent to a room
+	 */
+	private static String roomOf(String text) {
+		return text.startsWith("#") ? firstWord(text) : DEFAULT_ROOM;
 	}
 
-	public void printKeys() {
-		Set<SelectionKey> selectionKeySet = selector.keys();
-		if (selectionKeySet.isEmpty()) {
-			System.out.println("The selector contains no key : this should not happen!");
-			return;
-		}
-		System.out.println("The selector contains:");
-		for (SelectionKey key : selectionKeySet) {
-			SelectableChannel channel = key.channel();
-			if (channel instanceof ServerSocketChannel) {
-				System.out.println("\tKey for ServerSocketChannel : " + interestOpsToString(key));
-			} else {
-				SocketChannel sc = (SocketChannel) channel;
-				System.out.println("\tKey for Client " + remoteAddressToString(sc) + " : " + interestOpsToString(key));
-			}
+	/**
+	 * @return the first word of text, without its leading # or @
+	 */
+	private static String firstWord(String text) {
+		var end = text.indexOf(' ');
+		return text.substring(1, end == -1 ? text.length() : end);
+	}
+
+	private static void notice(Context context, String text) {
+		context.queueMessage(new Message.Builder().setLogin(SERVER_LOGIN).setMessage(text).build().encode());
+	}
+
+	/**
+	 * Add a frame to the queue of each recipient, it is shared by all of them
+	 *
+	 * @param frame in read-mode
+	 */
+	private static void send(Set<Context> recipients, ByteBuffer frame) {
+		for (var recipient : recipients) {
+			recipient.queueMessage(frame);
 		}
 	}
 
-	private String remoteAddressToString(SocketChannel sc) {
+	/**
+	 * @return the port on which the clients connect
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Serves the clients until the thread is interrupted, the connections and the
+	 * message log are then closed
+	 *
+	 * @throws IOException
+	 */
+	public void launch() throws IOException {
 		try {
-			return sc.getRemoteAddress().toString();
-		} catch (IOException e) {
-			return "???";
+			reactor.launch();
+		} finally {
+			reactor.closeAll();
+			if (commitLog()) {
+				closeLog();
+			}
 		}
 	}
 
-	public void printSelectedKey(SelectionKey key) {
-		SelectableChannel channel = key.channel();
-		if (channel instanceof ServerSocketChannel) {
-			System.out.println("\tServerSocketChannel can perform : " + possibleActionsToString(key));
-		} else {
-			SocketChannel sc = (SocketChannel) channel;
-			System.out.println(
-					"\tClient " + remoteAddressToString(sc) + " can perform : " + possibleActionsToString(key));
+	public static void main(String[] args) throws NumberFormatException, IOException {
+		Path logDirectory = null;
+		if (args.length >= 2 && args[0].equals("-log")) {
+			logDirectory = Path.of(args[1]);
+			args = Arrays.copyOfRange(args, 2, args.length);
+		}
+		if (args.length < 1) {
+			usage();
+			return;
+		}
+		var peerPort = args.length > 1 ? Integer.parseInt(args[1]) : -1;
+		var peers = new ArrayList<InetSocketAddress>();
+		for (int i = 2; i < args.length; i++) {
+			var separator = args[i].lastIndexOf(':');
+			if (separator == -1) {
+				usage();
+				return;
+			}
+			peers.add(new InetSocketAddress(args[i].substring(0, separator),
+					Integer.parseInt(args[i].substring(separator + 1))));
 		}
+		new ServerChaton(Integer.parseInt(args[0]), peerPort, peers, logDirectory).launch();
 	}
 
-	private String possibleActionsToString(SelectionKey key) {
-		if (!key.isValid()) {
-			return "CANCELLED";
-		}
-		ArrayList<String> list = new ArrayList<>();
-		if (key.isAcceptable())
-			list.add("ACCEPT");
-		if (key.isReadable())
-			list.add("READ");
-		if (key.isWritable())
-			list.add("WRITE");
-		return String.join(" and ", list);
+	private static void usage() {
+		System.out.println("Usage : ServerChaton [-log directory] port [peerPort [peerHost:peerPort ...]]");
 	}
 }
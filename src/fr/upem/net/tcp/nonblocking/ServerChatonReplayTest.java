@@ -0,0 +1,95 @@
+package fr.upem.net.tcp.nonblocking;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ServerChatonReplayTest {
+
+    private Thread serverThread;
+
+    private static void send(DataOutputStream out, String login, String text) throws IOException {
+        var frame = new Message.Builder().setLogin(login).setMessage(text).build().encode();
+        out.write(frame.array(), 0, frame.limit());
+        out.flush();
+    }
+
+    private static String receive(DataInputStream in) throws IOException {
+        var login = new byte[in.readInt()];
+        in.readFully(login);
+        var text = new byte[in.readInt()];
+        in.readFully(text);
+        return new String(login, StandardCharsets.UTF_8) + ": " + new String(text, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the port of a server started on a free port
+     */
+    private int start(Path logDirectory) throws Exception {
+        var server = new ServerChaton(0, -1, List.of(), logDirectory);
+        serverThread = new Thread(() -> {
+            try {
+                server.launch();
+            } catch (IOException e) {
+                // the test is over
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+        return server.getPort();
+    }
+
+    @AfterEach
+    public void stop() throws InterruptedException {
+        if (serverThread != null) {
+            serverThread.interrupt();
+            serverThread.join();
+        }
+    }
+
+    @Test
+    public void replayOnlyJoinedRooms(@TempDir Path logDirectory) throws Exception {
+        var port = start(logDirectory);
+        try (var member = new Socket("localhost", port); var outsider = new Socket("localhost", port)) {
+            var memberOut = new DataOutputStream(member.getOutputStream());
+            var memberIn = new DataInputStream(member.getInputStream());
+            var outsiderOut = new DataOutputStream(outsider.getOutputStream());
+            var outsiderIn = new DataInputStream(outsider.getInputStream());
+
+            send(memberOut, "bob", "/join secret");
+            send(memberOut, "bob", "#secret hidden");
+            assertEquals("bob: #secret hidden", receive(memberIn));
+
+            send(outsiderOut, "eve", "/replay 0");
+            send(outsiderOut, "eve", "/offset");
+            assertEquals("server: offset 1", receive(outsiderIn));
+
+            send(memberOut, "bob", "/replay 0");
+            assertEquals("bob: #secret hidden", receive(memberIn));
+        }
+    }
+
+    @Test
+    public void unknownRoomNotStored(@TempDir Path logDirectory) throws Exception {
+        var port = start(logDirectory);
+        try (var client = new Socket("localhost", port)) {
+            var out = new DataOutputStream(client.getOutputStream());
+            var in = new DataInputStream(client.getInputStream());
+
+            send(out, "eve", "#nowhere spam");
+            assertEquals("server: unknown room nowhere", receive(in));
+            send(out, "eve", "/offset");
+            assertEquals("server: offset 0", receive(in));
+        }
+    }
+}
@@ -1,234 +1,64 @@
 package fr.upem.net.tcp.nonblocking;
 
 import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.*;
-import java.util.ArrayList;
-import java.util.Set;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 public class ServerEcho {
 
-	static private class Context {
+	static private int MAX_FREE_BUFFERS = 64; // for each size
+	static private long QUIET_PERIOD = 10_000; // milliseconds without activity before shrinking the buffer
 
-		final private SelectionKey key;
-		final private SocketChannel sc;
-		final private ByteBuffer bb = ByteBuffer.allocate(BUFFER_SIZE);
-		private boolean closed = false;
-
-		private Context(SelectionKey key){
-			this.key = key;
-			this.sc = (SocketChannel) key.channel();
-		}
-
-		/**
-		 * Update the interestOps of the key looking
-		 * only at values of the boolean closed and
-		 * the ByteBuffer buff.
-		 *
-		 * The convention is that buff is in write-mode.
-		 */
-		private void updateInterestOps() {
-			int intrestOps = 0;
-			if(bb.hasRemaining() && !closed) {
-				intrestOps |= SelectionKey.OP_READ;
-			}
-			if(bb.position()!=0) {
-				intrestOps |= SelectionKey.OP_WRITE;
-			}
-			if(intrestOps ==0) {
-				silentlyClose();
-			}else {
-				key.interestOps(intrestOps);
-			}
-			
-		}
-
-		/**
-		 * Performs the read action on sc
-		 *
-		 * The convention is that buff is in write-mode before calling doRead
-		 * and is in write-mode after calling doRead
-		 *
-		 * @throws IOException
-		 */
-		private void doRead() throws IOException {
-			
-			if(sc.read(bb) == -1) {
-				closed = true;
-			}
-			updateInterestOps();
-		}
-
-		/**
-		 * Performs the write action on sc
-		 *
-		 * The convention is that buff is in write-mode before calling doWrite
-		 * and is in write-mode after calling doWrite
-		 *
-		 * @throws IOException
-		 */
-		private void doWrite() throws IOException {
-			bb.flip();
-			sc.write(bb);
-			bb.compact();
-			updateInterestOps();
-		}
-
-		private void silentlyClose() {
-			try {
-				sc.close();
-			} catch (IOException e) {
-				// ignore exception
-			}
-		}
-	}
-
-	static private int BUFFER_SIZE = 1_024;
-	static private Logger logger = Logger.getLogger(ServerEcho.class.getName());
-
-	private final ServerSocketChannel serverSocketChannel;
-	private final Selector selector;
+	private final Reactor reactor;
 
 	public ServerEcho(int port) throws IOException {
-		serverSocketChannel = ServerSocketChannel.open();
-		serverSocketChannel.bind(new InetSocketAddress(port));
-		selector = Selector.open();
+		this(port, EchoConnection.MIN_BUFFER_SIZE, EchoConnection.MAX_BUFFER_SIZE);
 	}
 
-	public void launch() throws IOException {
-		serverSocketChannel.configureBlocking(false);
-		serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
-		while(!Thread.interrupted()) {
-			printKeys(); // for debug
-			System.out.println("Starting select");
-			try {
-				selector.select(this::treatKey);
-			} catch (UncheckedIOException tunneled) {
-				throw tunneled.getCause();
-			}
-			System.out.println("Select finished");
-		}
+	public ServerEcho(int port, int minBufferSize, int maxBufferSize) throws IOException {
+		this(port, minBufferSize, maxBufferSize, new Reactor.Builder());
 	}
 
-	private void treatKey(SelectionKey key) {
-		printSelectedKey(key); // for debug
-		try {
-			if (key.isValid() && key.isAcceptable()) {
-				doAccept(key);
-			}
-		} catch(IOException ioe) {
-			// lambda call in select requires to tunnel IOException
-			throw new UncheckedIOException(ioe);
-		}
-		try {
-			if (key.isValid() && key.isWritable()) {
-				((Context) key.attachment()).doWrite();
-			}
-			if (key.isValid() && key.isReadable()) {
-				((Context) key.attachment()).doRead();
-			}
-		} catch (IOException e) {
-			logger.log(Level.INFO,"Connection closed with client due to IOException",e);
-			silentlyClose(key);
-		}
+	/**
+	 * @param minBufferSize the size below which the buffer of a quiet connection is not shrunk
+	 * @param maxBufferSize the size above which the buffer of a bulk sender is not grown
+	 * @param readSpins the maximum number of reads on a connection per selection
+	 * @param writeSpins the maximum number of writes on a connection per selection
+	 */
+	public ServerEcho(int port, int minBufferSize, int maxBufferSize, int readSpins, int writeSpins) throws IOException {
+		this(port, minBufferSize, maxBufferSize, new Reactor.Builder().setReadSpins(readSpins).setWriteSpins(writeSpins));
 	}
 
-	private void doAccept(SelectionKey key) throws IOException {
-		var ssc = (ServerSocketChannel) key.channel();
-		var sc = ssc.accept();
-		
-		if (sc != null) {
-			sc.configureBlocking(false);
-			var scKey = sc.register(selector,SelectionKey.OP_READ );
-			scKey.attach(new Context(scKey));
+	private ServerEcho(int port, int minBufferSize, int maxBufferSize, Reactor.Builder builder) throws IOException {
+		if (minBufferSize <= 0 || maxBufferSize < minBufferSize) {
+			throw new IllegalArgumentException("expected 0 < minBufferSize <= maxBufferSize");
 		}
+		var initial = Math.max(minBufferSize, Math.min(EchoConnection.BUFFER_SIZE, maxBufferSize));
+		reactor = builder.setQuietPeriod(QUIET_PERIOD).build();
+		var pools = new BufferPools(minBufferSize, maxBufferSize, MAX_FREE_BUFFERS);
+		reactor.listen(port,
+				key -> new EchoConnection(key, new AdaptiveBufferSizer(minBufferSize, initial, maxBufferSize, pools)));
 	}
 
-	private void silentlyClose(SelectionKey key) {
-		Channel sc = (Channel) key.channel();
-		try {
-			sc.close();
-		} catch (IOException e) {
-			// ignore exception
-		}
+	public void launch() throws IOException {
+		reactor.launch();
 	}
 
 	public static void main(String[] args) throws NumberFormatException, IOException {
-		if (args.length!=1){
+		if (args.length!=1 && args.length!=3 && args.length!=5){
 			usage();
 			return;
 		}
-		new ServerEcho(Integer.parseInt(args[0])).launch();
-	}
-
-	private static void usage(){
-		System.out.println("Usage : ServerEcho port");
-	}
-
-	/***
-	 *  Theses methods are here to help understanding the behavior of the selector
-	 ***/
-
-	private String interestOpsToString(SelectionKey key){
-		if (!key.isValid()) {
-			return "CANCELLED";
-		}
-		int interestOps = key.interestOps();
-		ArrayList<String> list = new ArrayList<>();
-		if ((interestOps&SelectionKey.OP_ACCEPT)!=0) list.add("OP_ACCEPT");
-		if ((interestOps&SelectionKey.OP_READ)!=0) list.add("OP_READ");
-		if ((interestOps&SelectionKey.OP_WRITE)!=0) list.add("OP_WRITE");
-		return String.join("|",list);
-	}
-
-	public void printKeys() {
-		Set<SelectionKey> selectionKeySet = selector.keys();
-		if (selectionKeySet.isEmpty()) {
-			System.out.println("The selector contains no key : this should not happen!");
-			return;
-		}
-		System.out.println("The selector contains:");
-		for (SelectionKey key : selectionKeySet){
-			SelectableChannel channel = key.channel();
-			if (channel instanceof ServerSocketChannel) {
-				System.out.println("\tKey for ServerSocketChannel : "+ interestOpsToString(key));
-			} else {
-				SocketChannel sc = (SocketChannel) channel;
-				System.out.println("\tKey for Client "+ remoteAddressToString(sc) +" : "+ interestOpsToString(key));
-			}
-		}
-	}
-
-	private String remoteAddressToString(SocketChannel sc) {
-		try {
-			return sc.getRemoteAddress().toString();
-		} catch (IOException e){
-			return "???";
-		}
-	}
-
-	public void printSelectedKey(SelectionKey key) {
-		SelectableChannel channel = key.channel();
-		if (channel instanceof ServerSocketChannel) {
-			System.out.println("\tServerSocketChannel can perform : " + possibleActionsToString(key));
+		var port = Integer.parseInt(args[0]);
+		if (args.length == 5) {
+			new ServerEcho(port, Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+					Integer.parseInt(args[4])).launch();
+		} else if (args.length == 3) {
+			new ServerEcho(port, Integer.parseInt(args[1]), Integer.parseInt(args[2])).launch();
 		} else {
-			SocketChannel sc = (SocketChannel) channel;
-			System.out.println("\tClient " + remoteAddressToString(sc) + " can perform : " + possibleActionsToString(key));
+			new ServerEcho(port).launch();
 		}
 	}
 
-	private String possibleActionsToString(SelectionKey key) {
-		if (!key.isValid()) {
-			return "CANCELLED";
-		}
-		ArrayList<String> list = new ArrayList<>();
-		if (key.isAcceptable()) list.add("ACCEPT");
-		if (key.isReadable()) list.add("READ");
-		if (key.isWritable()) list.add("WRITE");
-		return String.join(" and ",list);
+	private static void usage(){
+		System.out.println("Usage : ServerEcho port [minBufferSize maxBufferSize [readSpins writeSpins]]");
 	}
 }
@@ -0,0 +1,180 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+
+/**
+ * TCP proxy forwarding each inbound connection to a fixed target.
+ *
+ * Each direction has its own RingBuffer in direct memory: the bytes read on
+ * one channel are written from the same memory to the other channel, they
+ * never reach the Java heap. The end of stream is propagated with
+ * shutdownOutput so half-closed connections are relayed too.
+ */
+public class ServerRelay {
+
+	/**
+	 * One side of a relayed connection
+	 */
+	static private class Context extends Connection {
+
+		final private RingBuffer ring = new RingBuffer(BUFFER_SIZE); // bytes read on sc, to write to peer
+		private Context peer;
+		private boolean closed = false; // end of stream read on sc
+		private boolean outputShutdown = false;
+
+		/**
+		 * @param peer the other side, null if it is not created yet
+		 */
+		private Context(SelectionKey key, Context peer) {
+			super(key);
+			this.peer = peer;
+			if (peer != null) {
+				peer.peer = this;
+			}
+		}
+
+		private boolean isFinished() {
+			return closed && ring.isEmpty() && outputShutdown;
+		}
+
+		@Override
+		protected int interestOps() {
+			int intrestOps = 0;
+			if (!closed && !ring.isFull()) {
+				intrestOps |= SelectionKey.OP_READ;
+			}
+			if (!peer.ring.isEmpty()) {
+				intrestOps |= SelectionKey.OP_WRITE;
+			}
+			return intrestOps;
+		}
+
+		/**
+		 * Writes the bytes read by the peer, with up to spins writes, and
+		 * propagates its end of stream
+		 *
+		 * @throws IOException
+		 */
+		private void flush(int spins) throws IOException {
+			if (!sc.isConnected()) {
+				return;
+			}
+			for (int i = 0; i < spins && !peer.ring.isEmpty(); i++) {
+				if (peer.ring.writeTo(sc) == 0) {
+					break;
+				}
+			}
+			if (peer.closed && peer.ring.isEmpty() && !outputShutdown) {
+				sc.shutdownOutput();
+				outputShutdown = true;
+			}
+		}
+
+		/**
+		 * Closes both sides once everything is relayed, otherwise updates the
+		 * interestOps of both sides. A side waiting for nothing stays open as
+		 * long as the other one relays.
+		 */
+		@Override
+		protected void updateInterestOps() {
+			if (isFinished() && peer.isFinished()) {
+				close();
+				return;
+			}
+			updateKey();
+			peer.updateKey();
+		}
+
+		private void updateKey() {
+			if (!key.isValid()) {
+				return;
+			}
+			if (sc.isConnectionPending()) {
+				key.interestOps(SelectionKey.OP_CONNECT);
+				return;
+			}
+			key.interestOps(interestOps());
+		}
+
+		/**
+		 * Performs up to spins reads on sc and forwards immediately what can be
+		 * written to the peer. It stops as soon as a read does not fill the
+		 * offered space, sc is then drained.
+		 *
+		 * @throws IOException
+		 */
+		@Override
+		protected void doRead(int spins) throws IOException {
+			for (int i = 0; i < spins && !closed && !ring.isFull(); i++) {
+				var offered = ring.remaining();
+				var read = ring.readFrom(sc);
+				if (read == -1) {
+					closed = true;
+				}
+				peer.flush(1);
+				if (read < offered) {
+					return;
+				}
+			}
+		}
+
+		@Override
+		protected void doWrite(int spins) throws IOException {
+			flush(spins);
+		}
+
+		@Override
+		protected void onConnected() throws IOException {
+			flush(1);
+		}
+
+		@Override
+		protected void onClose() {
+			peer.close();
+		}
+	}
+
+	static private int BUFFER_SIZE = 64 * 1_024;
+
+	private final Reactor reactor;
+
+	public ServerRelay(int port, InetSocketAddress target) throws IOException {
+		this(port, target, new Reactor.Builder());
+	}
+
+	/**
+	 * @param readSpins the maximum number of reads on a connection per selection
+	 * @param writeSpins the maximum number of writes on a connection per selection
+	 */
+	public ServerRelay(int port, InetSocketAddress target, int readSpins, int writeSpins) throws IOException {
+		this(port, target, new Reactor.Builder().setReadSpins(readSpins).setWriteSpins(writeSpins));
+	}
+
+	private ServerRelay(int port, InetSocketAddress target, Reactor.Builder builder) throws IOException {
+		reactor = builder.build();
+		reactor.listen(port, key -> {
+			var inbound = new Context(key, null);
+			reactor.connect(target, outKey -> new Context(outKey, inbound));
+			return inbound;
+		});
+	}
+
+	public void launch() throws IOException {
+		reactor.launch();
+	}
+
+	public static void main(String[] args) throws NumberFormatException, IOException {
+		if (args.length != 3) {
+			usage();
+			return;
+		}
+		new ServerRelay(Integer.parseInt(args[0]), new InetSocketAddress(args[1], Integer.parseInt(args[2])))
+				.launch();
+	}
+
+	private static void usage() {
+		System.out.println("Usage : ServerRelay port targetHost targetPort");
+	}
+}
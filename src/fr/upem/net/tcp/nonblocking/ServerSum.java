@@ -1,190 +1,61 @@
 package fr.upem.net.tcp.nonblocking;
 
 import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.Channel;
-import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.ServerSocketChannel;
-import java.nio.channels.SocketChannel;
-import java.util.ArrayList;
-import java.util.Set;
-import java.util.logging.Logger;
 
 public class ServerSum {
-	static private int BUFFER_SIZE = 2*Integer.BYTES;
-	static private Logger logger = Logger.getLogger(ServerSum.class.getName());
 
-	private final ServerSocketChannel serverSocketChannel;
-	private final Selector selector;
+	/**
+	 * Answers each request, made of two ints, with their sum, one request at a time
+	 */
+	static private class Context extends BufferedConnection {
 
-	public ServerSum(int port) throws IOException {
-		serverSocketChannel = ServerSocketChannel.open();
-		serverSocketChannel.bind(new InetSocketAddress(port));
-		selector = Selector.open();
-	}
-
-	public void launch() throws IOException {
-		serverSocketChannel.configureBlocking(false);
-		serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
-			
-		
-		while (!Thread.interrupted()) {
-			try {
-				printKeys(); // for debug
-				System.out.println("Starting select");
-				selector.select(this::treatKey);
-				System.out.println("Select finished");
-			}catch(UncheckedIOException e) {
-				throw new IOException(e);
-			}
+		private Context(SelectionKey key) {
+			super(key, BUFFER_SIZE, Integer.BYTES);
 		}
-	}
 
-	private void treatKey(SelectionKey key) {
-		try {
-			printSelectedKey(key); // for debug
-			if (key.isValid() && key.isAcceptable()) {
-				doAccept(key);
-			}
-			if (key.isValid() && key.isWritable()) {
-				doWrite(key);
+		@Override
+		protected void processIn() {
+			if (bbin.hasRemaining() || bbout.position() != 0) {
+				return;
 			}
-			if (key.isValid() && key.isReadable()) {
-				doRead(key);
-			}	
-		}catch(IOException e) {
-			throw new UncheckedIOException(e);
+			bbin.flip();
+			bbout.putInt(bbin.getInt() + bbin.getInt());
+			bbin.clear();
 		}
 	}
 
-	private void doAccept(SelectionKey key) throws IOException {
-		//key.attach(ByteBuffer.allocateDirect(BUFFER_SIZE));
-		var ssc = (ServerSocketChannel) key.channel();
-		var sc = ssc.accept();
-		if (sc != null) {
-			sc.configureBlocking(false);
-			sc.register(selector,SelectionKey.OP_READ, ByteBuffer.allocateDirect(BUFFER_SIZE) );
-		}
-	}
+	static private int BUFFER_SIZE = 2*Integer.BYTES;
 
-	private void doRead(SelectionKey key) throws IOException {
-		var sc = (SocketChannel) key.channel();
-		var bb = (ByteBuffer) key.attachment();
-		
-		if(sc.read(bb)==-1) {
-			silentlyClose(key);
-		};
-		
-		if(bb.hasRemaining()) {
-			return;
-		}
-		bb.flip();
-		var sum =bb.getInt() + bb.getInt();
-		bb.clear();
-		bb.putInt(sum);
-	
-		bb.flip();
-		key.interestOps(SelectionKey.OP_WRITE);
-	}
+	private final ReactorGroup group;
 
-	private void doWrite(SelectionKey key) throws IOException {
-		var sc = (SocketChannel) key.channel();
-		var bb = (ByteBuffer) key.attachment();
-		sc.write(bb);
+	public ServerSum(int port) throws IOException {
+		this(port, 1);
+	}
 
-		if(bb.hasRemaining()) { // first write
-			return ;
-		} 
-		
-		key.interestOps(SelectionKey.OP_READ);
-		bb.clear();
+	/**
+	 * @param reactors the number of Reactors sharing the port
+	 * @throws IOException
+	 */
+	public ServerSum(int port, int reactors) throws IOException {
+		group = new ReactorGroup(reactors, new Reactor.Builder());
+		group.listen(port, reactor -> Context::new);
 	}
 
-	private void silentlyClose(SelectionKey key) {
-		Channel sc = (Channel) key.channel();
-		try {
-			sc.close();
-		} catch (IOException e) {
-			// ignore exception
-		}
+	public void launch() throws IOException {
+		group.launch();
 	}
 
 	public static void main(String[] args) throws NumberFormatException, IOException {
-		if (args.length!=1){
+		if (args.length!=1 && args.length!=2){
 			usage();
 			return;
 		}
-		new ServerSum(Integer.parseInt(args[0])).launch();
+		var reactors = args.length == 2 ? Integer.parseInt(args[1]) : 1;
+		new ServerSum(Integer.parseInt(args[0]), reactors).launch();
 	}
 
 	private static void usage(){
-		System.out.println("Usage : ServerSum port");
-	}
-
-	/***
-	 *  Theses methods are here to help understanding the behavior of the selector
-	 ***/
-
-	private String interestOpsToString(SelectionKey key){
-		if (!key.isValid()) {
-			return "CANCELLED";
-		}
-		int interestOps = key.interestOps();
-		ArrayList<String> list = new ArrayList<>();
-		if ((interestOps&SelectionKey.OP_ACCEPT)!=0) list.add("OP_ACCEPT");
-		if ((interestOps&SelectionKey.OP_READ)!=0) list.add("OP_READ");
-		if ((interestOps&SelectionKey.OP_WRITE)!=0) list.add("OP_WRITE");
-		return String.join("|",list);
-	}
-
-	public void printKeys() {
-		Set<SelectionKey> selectionKeySet = selector.keys();
-		if (selectionKeySet.isEmpty()) {
-			System.out.println("The selector contains no key : this should not happen!");
-			return;
-		}
-		System.out.println("The selector contains:");
-		for (SelectionKey key : selectionKeySet){
-			SelectableChannel channel = key.channel();
-			if (channel instanceof ServerSocketChannel) {
-				System.out.println("\tKey for ServerSocketChannel : "+ interestOpsToString(key));
-			} else {
-				SocketChannel sc = (SocketChannel) channel;
-				System.out.println("\tKey for Client "+ remoteAddressToString(sc) +" : "+ interestOpsToString(key));
-			}
-		}
-	}
-
-	private String remoteAddressToString(SocketChannel sc) {
-		try {
-			return sc.getRemoteAddress().toString();
-		} catch (IOException e){
-			return "???";
-		}
-	}
-
-	public void printSelectedKey(SelectionKey key) {
-		SelectableChannel channel = key.channel();
-		if (channel instanceof ServerSocketChannel) {
-			System.out.println("\tServerSocketChannel can perform : " + possibleActionsToString(key));
-		} else {
-			SocketChannel sc = (SocketChannel) channel;
-			System.out.println("\tClient " + remoteAddressToString(sc) + " can perform : " + possibleActionsToString(key));
-		}
-	}
-
-	private String possibleActionsToString(SelectionKey key) {
-		if (!key.isValid()) {
-			return "CANCELLED";
-		}
-		ArrayList<String> list = new ArrayList<>();
-		if (key.isAcceptable()) list.add("ACCEPT");
-		if (key.isReadable()) list.add("READ");
-		if (key.isWritable()) list.add("WRITE");
-		return String.join(" and ",list);
+		System.out.println("Usage : ServerSum port [reactors]");
 	}
 }
@@ -1,190 +1,87 @@
 package fr.upem.net.tcp.nonblocking;
 
 import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.*;
-import java.util.ArrayList;
-import java.util.Set;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
-
+import java.nio.channels.SelectionKey;
 
 public class ServerSumOneShot {
 
-	static private int BUFFER_SIZE = 2*Integer.BYTES;
-	static private Logger logger = Logger.getLogger(ServerSumOneShot.class.getName());
+	/**
+	 * Answers the first request, made of two ints, with their sum, then closes the connection.
+	 * Its buffers come from the pool of its Reactor and go back to it once closed.
+	 */
+	static private class Context extends BufferedConnection {
 
-	private final ServerSocketChannel serverSocketChannel;
-	private final Selector selector;
+		private final BufferPool pool;
 
-	public ServerSumOneShot(int port) throws IOException {
-		serverSocketChannel = ServerSocketChannel.open();
-		serverSocketChannel.bind(new InetSocketAddress(port));
-		selector = Selector.open();
-	}
+		private Context(SelectionKey key, BufferPool pool) {
+			super(key, pool.acquire(), pool.acquire());
+			this.pool = pool;
+		}
 
-	public void launch() throws IOException {
-		serverSocketChannel.configureBlocking(false);
-		serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
-			
-		
-		while (!Thread.interrupted()) {
-			try {
-				printKeys(); // for debug
-				System.out.println("Starting select");
-				selector.select(this::treatKey);
-				System.out.println("Select finished");
-			}catch(UncheckedIOException e) {
-				throw new IOException(e);
-			}
+		@Override
+		protected void onClose() {
+			pool.release(bbin);
+			pool.release(bbout);
 		}
-	}
 
-	private void treatKey(SelectionKey key) {
-		try {
-			printSelectedKey(key); // for debug
-			if (key.isValid() && key.isAcceptable()) {
-				doAccept(key);
-			}
-			if (key.isValid() && key.isWritable()) {
-				doWrite(key);
+		@Override
+		protected void processIn() {
+			if (bbin.hasRemaining() || isInputClosed()) {
+				return;
 			}
-			if (key.isValid() && key.isReadable()) {
-				doRead(key);
-			}	
-		}catch(IOException e) {
-			throw new UncheckedIOException(e);
+			bbin.flip();
+			bbout.putInt(bbin.getInt() + bbin.getInt());
+			bbin.clear();
+			closeInput();
 		}
 	}
 
-	private void doAccept(SelectionKey key) throws IOException {
-		//key.attach(ByteBuffer.allocateDirect(BUFFER_SIZE));
-		var ssc = (ServerSocketChannel) key.channel();
-		var sc = ssc.accept();
-		if (sc != null) {
-			sc.configureBlocking(false);
-			sc.register(selector,SelectionKey.OP_READ, ByteBuffer.allocateDirect(BUFFER_SIZE) );
-		}
-	}
+	static private int BUFFER_SIZE = 2*Integer.BYTES;
+	static private int MAX_FREE_BUFFERS = 1_024;
 
-	private void doRead(SelectionKey key) throws IOException {
-		var sc = (SocketChannel) key.channel();
-		var bb = (ByteBuffer) key.attachment();
-		
+	private final ReactorGroup group;
 
-		if(sc.read(bb)==-1) {
-			silentlyClose(key);
-		};
-		
-		if(bb.hasRemaining()) {
-			return;
-		}
-		bb.flip();
-		var sum =bb.getInt() + bb.getInt();
-		bb.clear();
-		bb.putInt(sum);
-	
-		bb.flip();
-		key.interestOps(SelectionKey.OP_WRITE);
+	public ServerSumOneShot(int port) throws IOException {
+		this(port, MAX_FREE_BUFFERS);
 	}
 
-	private void doWrite(SelectionKey key) throws IOException {
-		var sc = (SocketChannel) key.channel();
-		var bb = (ByteBuffer) key.attachment();
-		bb.flip();
-		sc.write(bb);
-		bb.compact();
-		silentlyClose(key);
-		
-		
+	/**
+	 * @param maxFreeBuffers the number of buffers kept for the next connections, 0 to
+	 *                       allocate new ones for each connection
+	 * @throws IOException
+	 */
+	public ServerSumOneShot(int port, int maxFreeBuffers) throws IOException {
+		this(port, maxFreeBuffers, 1);
+	}
 
+	/**
+	 * @param reactors the number of Reactors sharing the port, each one with its
+	 *                 own pool of maxFreeBuffers buffers
+	 * @throws IOException
+	 */
+	public ServerSumOneShot(int port, int maxFreeBuffers, int reactors) throws IOException {
+		group = new ReactorGroup(reactors, new Reactor.Builder());
+		group.listen(port, reactor -> {
+			var pool = new BufferPool(BUFFER_SIZE, maxFreeBuffers);
+			return key -> new Context(key, pool);
+		});
 	}
 
-	private void silentlyClose(SelectionKey key) {
-		Channel sc = (Channel) key.channel();
-		//key.interestOps()
-		try {
-			sc.close();
-		} catch (IOException e) {
-			// ignore exception
-		}
+	public void launch() throws IOException {
+		group.launch();
 	}
 
 	public static void main(String[] args) throws NumberFormatException, IOException {
-		if (args.length!=1){
+		if (args.length<1 || args.length>3){
 			usage();
 			return;
 		}
-		new ServerSumOneShot(Integer.parseInt(args[0])).launch();
+		var maxFreeBuffers = args.length >= 2 ? Integer.parseInt(args[1]) : MAX_FREE_BUFFERS;
+		var reactors = args.length == 3 ? Integer.parseInt(args[2]) : 1;
+		new ServerSumOneShot(Integer.parseInt(args[0]), maxFreeBuffers, reactors).launch();
 	}
 
 	private static void usage(){
-		System.out.println("Usage : ServerSumOneShot port");
-	}
-
-	/***
-	 *  Theses methods are here to help understanding the behavior of the selector
-	 ***/
-
-	private String interestOpsToString(SelectionKey key){
-		if (!key.isValid()) {
-			return "CANCELLED";
-		}
-		int interestOps = key.interestOps();
-		ArrayList<String> list = new ArrayList<>();
-		if ((interestOps&SelectionKey.OP_ACCEPT)!=0) list.add("OP_ACCEPT");
-		if ((interestOps&SelectionKey.OP_READ)!=0) list.add("OP_READ");
-		if ((interestOps&SelectionKey.OP_WRITE)!=0) list.add("OP_WRITE");
-		return String.join("|",list);
-	}
-
-	public void printKeys() {
-		Set<SelectionKey> selectionKeySet = selector.keys();
-		if (selectionKeySet.isEmpty()) {
-			System.out.println("The selector contains no key : this should not happen!");
-			return;
-		}
-		System.out.println("The selector contains:");
-		for (SelectionKey key : selectionKeySet){
-			SelectableChannel channel = key.channel();
-			if (channel instanceof ServerSocketChannel) {
-				System.out.println("\tKey for ServerSocketChannel : "+ interestOpsToString(key));
-			} else {
-				SocketChannel sc = (SocketChannel) channel;
-				System.out.println("\tKey for Client "+ remoteAddressToString(sc) +" : "+ interestOpsToString(key));
-			}
-		}
-	}
-
-	private String remoteAddressToString(SocketChannel sc) {
-		try {
-			return sc.getRemoteAddress().toString();
-		} catch (IOException e){
-			return "???";
-		}
-	}
-
-	public void printSelectedKey(SelectionKey key) {
-		SelectableChannel channel = key.channel();
-		if (channel instanceof ServerSocketChannel) {
-			System.out.println("\tServerSocketChannel can perform : " + possibleActionsToString(key));
-		} else {
-			SocketChannel sc = (SocketChannel) channel;
-			System.out.println("\tClient " + remoteAddressToString(sc) + " can perform : " + possibleActionsToString(key));
-		}
-	}
-
-	private String possibleActionsToString(SelectionKey key) {
-		if (!key.isValid()) {
-			return "CANCELLED";
-		}
-		ArrayList<String> list = new ArrayList<>();
-		if (key.isAcceptable()) list.add("ACCEPT");
-		if (key.isReadable()) list.add("READ");
-		if (key.isWritable()) list.add("WRITE");
-		return String.join(" and ",list);
+		System.out.println("Usage : ServerSumOneShot port [maxFreeBuffers [reactors]]");
 	}
 }
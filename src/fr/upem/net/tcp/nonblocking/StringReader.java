@@ -10,7 +10,7 @@ import java.util.logging.Logger;
 public class StringReader implements Reader<String> {
     private enum State {DONE, WAITING_FOR_SIZE, WAITING_FOR_CONTENT, ERROR};
 	static private Logger logger = Logger.getLogger(StringReader.class.getName());
-    private final int MAX_SIZE = 1_024;
+    static final int MAX_SIZE = 1_024; // bytes, a longer string is an error
     private static final Charset UTF8 = StandardCharsets.UTF_8;
     private final IntReader intReader = new IntReader();
     private final ByteBuffer internalbb = ByteBuffer.allocate(MAX_SIZE);
@@ -28,7 +28,7 @@ public class StringReader implements Reader<String> {
                 	return status ;
                 }
                 size = intReader.get();
-            	if(size < 0 || size > 1024) {
+            	if(size < 0 || size > MAX_SIZE) {
             		return ProcessStatus.ERROR;
             	}
             	//reset();